@@ -16,156 +16,714 @@
 
 package rakama.sc2mc;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 
+import rakama.sc2mc.RenderPass.Footprint;
+import rakama.sc2mc.canvas.Canvas;
+import rakama.sc2mc.canvas.TileBuffer;
+import rakama.sc2mc.canvas.WorldCanvasAdapter;
 import rakama.sc2mc.map.SC2Map;
 import rakama.sc2mc.map.StructureMap;
 import rakama.sc2mc.map.TerrainMap;
-import rakama.worldtools.canvas.BlockCanvas;
+import rakama.sc2mc.map.UndergroundMap;
+import rakama.sc2mc.palette.Palette;
 import rakama.worldtools.canvas.WorldCanvas;
 import rakama.worldtools.data.Biome;
 import rakama.worldtools.data.Block;
 
 public class Converter
 {
-    protected static final int width = 128;
-    protected static final int height = 128;
     protected static final int grid_scale = 16;
+    protected static final long empty_lot_seed = 0x5DEECE66DL;
+    protected static final long tree_seed = 0x2545F4914F6CDD1DL;
+    protected static final int pipe_depth = 6;
+    protected static final int subway_depth = 16;
+    
+    // passage sizes by network type, in the order of the UndergroundMap constants
+    protected static final int[] passage_radius = {1, 0, 2};
+    protected static final int[] passage_height = {4, 1, 5};
+    protected static final int station_radius = 3;
+    
+    public static final double empty_lot_shrub_chance = 0.02;
+    
+    public static final RenderPass terrain_pass = new BuiltinPass("terrain", Footprint.NONE, Footprint.TILE)
+    {
+        public void render(Converter converter, int x0, int y0)
+        {
+            converter.renderTerrain(x0, y0);
+        }
+    };
+    
+    public static final RenderPass waterfall_pass = new BuiltinPass("waterfall", Footprint.NONE, Footprint.TILE)
+    {
+        public boolean isActive(Converter converter, int x0, int y0)
+        {
+            return converter.map.getTerrainMap().isWaterfall(x0, y0);
+        }
+        
+        public void render(Converter converter, int x0, int y0)
+        {
+            converter.renderWaterfall(x0, y0);
+        }
+    };
+    
+    public static final RenderPass empty_lot_pass = new BuiltinPass("emptylot", Footprint.NONE, Footprint.TILE)
+    {
+        public boolean isActive(Converter converter, int x0, int y0)
+        {
+            return converter.map.getStructureMap().isEmptyLot(x0, y0);
+        }
+        
+        public void render(Converter converter, int x0, int y0)
+        {
+            converter.rand.setSeed(converter.getTileSeed(x0, y0, empty_lot_seed));
+            converter.renderEmptyLot(x0, y0);
+        }
+    };
+    
+    public static final RenderPass road_pass = new BuiltinPass("road", Footprint.NONE, Footprint.TILE)
+    {
+        public boolean isActive(Converter converter, int x0, int y0)
+        {
+            return converter.map.getStructureMap().isRoad(x0, y0);
+        }
+        
+        public void render(Converter converter, int x0, int y0)
+        {
+            converter.renderRoad(x0, y0);
+        }
+    };
+    
+    public static final RenderPass highway_pass = new BuiltinPass("highway", Footprint.NONE, Footprint.TILE)
+    {
+        public boolean isActive(Converter converter, int x0, int y0)
+        {
+            return converter.map.getStructureMap().isHighway(x0, y0);
+        }
+        
+        public void render(Converter converter, int x0, int y0)
+        {
+            converter.renderHighway(x0, y0);
+        }
+    };
+    
+    public static final RenderPass rail_pass = new BuiltinPass("rail", Footprint.NONE, Footprint.TILE)
+    {
+        public boolean isActive(Converter converter, int x0, int y0)
+        {
+            return converter.map.getStructureMap().isRail(x0, y0);
+        }
+        
+        public void render(Converter converter, int x0, int y0)
+        {
+            converter.renderRail(x0, y0);
+        }
+    };
+    
+    public static final RenderPass powerline_pass = new BuiltinPass("powerline", Footprint.NONE, Footprint.TILE)
+    {
+        public boolean isActive(Converter converter, int x0, int y0)
+        {
+            return converter.map.getStructureMap().isPowerline(x0, y0);
+        }
+        
+        public void render(Converter converter, int x0, int y0)
+        {
+            converter.renderPowerline(x0, y0);
+        }
+    };
+    
+    public static final RenderPass underground_pass = new BuiltinPass("underground", Footprint.NONE, Footprint.TILE)
+    {
+        public boolean isActive(Converter converter, int x0, int y0)
+        {
+            return converter.map.getUndergroundMap().getUndergroundID(x0, y0) != 0;
+        }
+        
+        public void render(Converter converter, int x0, int y0)
+        {
+            converter.renderUnderground(x0, y0);
+        }
+    };
+    
+    // leaves overhang the tile by one block, and only fill air
+    public static final RenderPass tree_pass = new BuiltinPass("trees", Footprint.HALO, Footprint.HALO)
+    {
+        public boolean isActive(Converter converter, int x0, int y0)
+        {
+            return converter.map.getStructureMap().getTreeDensity(x0, y0) > 0;
+        }
+        
+        public void render(Converter converter, int x0, int y0)
+        {
+            int numTrees = (int)(converter.map.getStructureMap().getTreeDensity(x0, y0) * 1.5);        
+            converter.rand.setSeed(converter.getTileSeed(x0, y0, tree_seed));
+            for(int i=0; i<numTrees; i++)
+                converter.renderTree(x0, y0);
+        }
+    };
+    
+    protected static final RenderPass[] default_passes = {terrain_pass, waterfall_pass, empty_lot_pass, 
+        road_pass, highway_pass, rail_pass, powerline_pass, underground_pass, tree_pass};
     
     protected Random rand;
-    protected WorldCanvas canvas;
+    protected Canvas canvas;
+    protected TileBuffer buffer;
     protected SC2Map map;
+    protected Palette palette;
+    protected final int width, height;
+    protected int xOrigin, yOrigin;
+    protected List<ConversionListener> listeners;
+    protected List<SpiralListener> spiralListeners;
+    
+    // passes run in list order, the enabled ones are cached in an array
+    protected List<RenderPass> passes;
+    protected List<RenderPass> disabledPasses;
+    protected RenderPass[] enabledPasses;
+    protected int[] enabledIndices;
+    protected long[] passNanos, passTiles;
+    
+    // altitudes of the tile currently being rendered
+    protected int[] altitudes;
+    protected float[] smoothAltitudes;
+    protected int tileX, tileY;
+    
+    // altitudes kept per tile while passes are swept one at a time, shared by forks
+    protected int[][] tileAltitudes;
     
     public Converter(SC2Map map, WorldCanvas canvas)
+    {
+        this(map, new WorldCanvasAdapter(canvas));
+    }
+
+    public Converter(SC2Map map, Canvas canvas)
+    {
+        this(map, canvas, getDefaultOrigin(map.getTerrainMap().getWidth()), 
+                getDefaultOrigin(map.getTerrainMap().getHeight()));
+    }
+
+    public Converter(SC2Map map, Canvas canvas, int xOrigin, int yOrigin)
     {
         this.map = map;
+        this.width = map.getTerrainMap().getWidth();
+        this.height = map.getTerrainMap().getHeight();
         this.canvas = canvas;
+        this.palette = Palette.getDefaultPalette();
+        this.buffer = new TileBuffer(canvas);
+        this.xOrigin = xOrigin;
+        this.yOrigin = yOrigin;
         this.rand = new Random(0);
+        this.listeners = new ArrayList<ConversionListener>();
+        this.spiralListeners = new ArrayList<SpiralListener>();
+        this.passes = new ArrayList<RenderPass>(Arrays.asList(default_passes));
+        this.disabledPasses = new ArrayList<RenderPass>();
+        updatePasses();
+        this.altitudes = new int[grid_scale * grid_scale];
+        this.smoothAltitudes = new float[grid_scale * grid_scale];
+        this.tileX = Integer.MIN_VALUE;
+        this.tileY = Integer.MIN_VALUE;
+    }
+    
+    public void addListener(ConversionListener listener)
+    {
+        listeners.add(listener);
+    }
+    
+    public void removeListener(ConversionListener listener)
+    {
+        listeners.remove(listener);
+    }
+    
+    public void addSpiralListener(SpiralListener listener)
+    {
+        spiralListeners.add(listener);
+    }
+    
+    public void removeSpiralListener(SpiralListener listener)
+    {
+        spiralListeners.remove(listener);
+    }
+    
+    public List<RenderPass> getPasses()
+    {
+        return Collections.unmodifiableList(passes);
+    }
+    
+    public RenderPass getPass(String name)
+    {
+        for(RenderPass pass : passes)
+            if(pass.getName().equals(name))
+                return pass;
+        
+        return null;
+    }
+    
+    public void addPass(RenderPass pass)
+    {
+        addPass(passes.size(), pass);
+    }
+    
+    public void addPass(int index, RenderPass pass)
+    {
+        if(getPass(pass.getName()) != null)
+            throw new IllegalArgumentException("Duplicate pass " + pass.getName());
+        
+        passes.add(index, pass);
+        updatePasses();
+    }
+    
+    public void removePass(RenderPass pass)
+    {
+        passes.remove(pass);
+        disabledPasses.remove(pass);
+        updatePasses();
+    }
+    
+    public void setPassEnabled(String name, boolean enabled)
+    {
+        RenderPass pass = getPass(name);
+        if(pass == null)
+            throw new IllegalArgumentException("Unknown pass " + name);
+        
+        setPassEnabled(pass, enabled);
+    }
+    
+    public void setPassEnabled(RenderPass pass, boolean enabled)
+    {
+        disabledPasses.remove(pass);
+        if(!enabled)
+            disabledPasses.add(pass);
+        
+        updatePasses();
+    }
+    
+    public boolean isPassEnabled(RenderPass pass)
+    {
+        return passes.contains(pass) && !disabledPasses.contains(pass);
+    }
+    
+    protected void updatePasses()
+    {
+        List<RenderPass> enabled = new ArrayList<RenderPass>();
+        for(RenderPass pass : passes)
+            if(!disabledPasses.contains(pass))
+                enabled.add(pass);
+        
+        enabledPasses = enabled.toArray(new RenderPass[enabled.size()]);
+        enabledIndices = new int[enabledPasses.length];
+        for(int i=0; i<enabledPasses.length; i++)
+            enabledIndices[i] = passes.indexOf(enabledPasses[i]);
+        
+        // timings are per position in the pass list
+        passNanos = new long[passes.size()];
+        passTiles = new long[passes.size()];
+    }
+    
+    public long getPassNanos(RenderPass pass)
+    {
+        int index = passes.indexOf(pass);
+        return index < 0 ? 0 : passNanos[index];
+    }
+    
+    public long getPassTiles(RenderPass pass)
+    {
+        int index = passes.indexOf(pass);
+        return index < 0 ? 0 : passTiles[index];
+    }
+    
+    public void logPassTimes()
+    {
+        for(int i=0; i<passes.size(); i++)
+        {
+            if(passTiles[i] == 0)
+                continue;
+            
+            log("  " + passes.get(i).getName() + ": " + passTiles[i] + " tiles in " 
+                    + (passNanos[i] / 1000000) + " ms");
+        }
+    }
+    
+    // a converter sharing this one's map, origin and passes, for another thread
+    public Converter fork(Canvas canvas)
+    {
+        Converter fork = createFork(canvas);
+        fork.passes = new ArrayList<RenderPass>(passes);
+        fork.disabledPasses = new ArrayList<RenderPass>(disabledPasses);
+        fork.palette = palette;
+        fork.tileAltitudes = tileAltitudes;
+        fork.updatePasses();
+        return fork;
+    }
+    
+    protected Converter createFork(Canvas canvas)
+    {
+        return new Converter(map, canvas, xOrigin, yOrigin);
     }
     
     public void convert(boolean verbose)
     {
-        for(int y=0; y<height; y++)
+        convert(0, 0, width, height, verbose);
+    }
+    
+    public void convert(int x0, int y0, int x1, int y1, boolean verbose)
+    {
+        if(x0 < 0 || y0 < 0 || x1 > width || y1 > height || x0 >= x1 || y0 >= y1)
+            throw new IndexOutOfBoundsException("(" + x0 + ", " + y0 + ") to (" + x1 + ", " + y1 + ")");
+        
+        int lastPercentage = -1;
+        
+        for(int y=y0; y<y1; y++)
         {
-            for(int x=0; x<width; x++)
+            for(int x=x0; x<x1; x++)
                 renderChunk(x, y);
             
-            if(verbose)
-                log("Generating... " + getPercentage(y + 1) + "% complete");            
+            for(int i=0; i<listeners.size(); i++)
+                listeners.get(i).tileRowCompleted(this, y);
+            
+            int percentage = getPercentage(y + 1 - y0, y1 - y0);
+            if(verbose && percentage != lastPercentage)
+                log("Generating... " + percentage + "% complete");
+            
+            lastPercentage = percentage;
+        }
+        
+        if(verbose)
+        {
+            log("Wrote " + buffer.getCanvasWrites() + " blocks (" + buffer.getOverdraw() + " overdrawn writes eliminated)");
+            logPassTimes();
+        }
+    }
+    
+    public void convertSpiral(int spawnX, int spawnY, boolean verbose)
+    {
+        checkTile(spawnX, spawnY);
+        
+        int maxRing = Math.max(Math.max(spawnX, width - 1 - spawnX), Math.max(spawnY, height - 1 - spawnY));
+        
+        // each tile fills exactly one chunk, chunks are handed out in the ring
+        // that makes them final, including the margin that only holds leaves
+        int columns = width + 2;
+        int chunkCount = columns * (height + 2);
+        int[] chunkRings = new int[chunkCount];
+        int[] ringStart = new int[maxRing + 2];
+        
+        for(int i=0; i<chunkCount; i++)
+        {
+            chunkRings[i] = getChunkRing(i % columns - 1, i / columns - 1, spawnX, spawnY);
+            ringStart[chunkRings[i] + 1]++;
+        }
+        
+        for(int ring=0; ring<=maxRing; ring++)
+            ringStart[ring + 1] += ringStart[ring];
+        
+        int[] chunkOrder = new int[chunkCount];
+        int[] ringFill = Arrays.copyOf(ringStart, ringStart.length);
+        for(int i=0; i<chunkCount; i++)
+            chunkOrder[ringFill[chunkRings[i]]++] = i;
+        
+        int chunkXMin = (getBlockX(0) >> 4) - 1;
+        int chunkZMin = (getBlockY(0) >> 4) - 1;
+        
+        int rendered = 0;
+        int lastPercentage = -1;
+        
+        for(int ring=0; ring<=maxRing; ring++)
+        {
+            for(int x=spawnX - ring; x<=spawnX + ring; x++)
+            {
+                rendered += renderSpiralTile(x, spawnY - ring);
+                if(ring > 0)
+                    rendered += renderSpiralTile(x, spawnY + ring);
+            }
+            
+            for(int y=spawnY - ring + 1; y<spawnY + ring; y++)
+            {
+                rendered += renderSpiralTile(spawnX - ring, y);
+                rendered += renderSpiralTile(spawnX + ring, y);
+            }
+            
+            for(int k=ringStart[ring]; k<ringStart[ring + 1]; k++)
+            {
+                int chunk = chunkOrder[k];
+                
+                for(int i=0; i<spiralListeners.size(); i++)
+                    spiralListeners.get(i).chunkCompleted(this, chunkXMin + chunk % columns, chunkZMin + chunk / columns);
+            }
+            
+            for(int i=0; i<spiralListeners.size(); i++)
+                spiralListeners.get(i).ringCompleted(this, ring);
+            
+            int percentage = getPercentage(rendered, width * height);
+            if(verbose && percentage != lastPercentage)
+                log("Generating... " + percentage + "% complete (ring " + ring + ")");
+            
+            lastPercentage = percentage;
+        }
+        
+        if(verbose)
+        {
+            log("Wrote " + buffer.getCanvasWrites() + " blocks (" + buffer.getOverdraw() + " overdrawn writes eliminated)");
+            logPassTimes();
         }
     }
     
+    protected int renderSpiralTile(int x0, int y0)
+    {
+        if(x0 < 0 || y0 < 0 || x0 >= width || y0 >= height)
+            return 0;
+        
+        renderChunk(x0, y0);
+        return 1;
+    }
+    
+    protected int getChunkRing(int x0, int y0, int spawnX, int spawnY)
+    {
+        // the tile itself and its neighbors, clipped to the map
+        int x1 = Math.min(width - 1, x0 + 1);
+        int y1 = Math.min(height - 1, y0 + 1);
+        x0 = Math.max(0, x0 - 1);
+        y0 = Math.max(0, y0 - 1);
+        
+        return Math.max(Math.max(Math.abs(x0 - spawnX), Math.abs(x1 - spawnX)), 
+                Math.max(Math.abs(y0 - spawnY), Math.abs(y1 - spawnY)));
+    }
+    
+    public void convertTile(int x0, int y0)
+    {
+        checkTile(x0, y0);
+        renderChunk(x0, y0);
+    }
+    
+    public void clearTile(int x0, int y0, int top)
+    {
+        checkTile(x0, y0);
+        
+        int xStart = getScaledCoordinate(x0, xOrigin);
+        int yStart = getScaledCoordinate(y0, yOrigin);
+        int xEnd = xStart + grid_scale;
+        int yEnd = yStart + grid_scale;
+        
+        // tiles on the map edge also own the margin their trees overhang
+        int xFrom = x0 == 0 ? xStart - 1 : xStart;
+        int yFrom = y0 == 0 ? yStart - 1 : yStart;
+        int xTo = x0 == width - 1 ? xEnd + 1 : xEnd;
+        int yTo = y0 == height - 1 ? yEnd + 1 : yEnd;
+        
+        // bedrock is never removed, everything above it up to top becomes air
+        buffer.begin(xStart, yStart);
+        for(int y=yFrom; y<yTo; y++)
+            for(int x=xFrom; x<xTo; x++)
+                for(int height=1; height<top; height++)
+                    buffer.setBlock(x, height, y, Block.AIR);
+        
+        buffer.flush();
+    }
+    
+    protected void checkTile(int x0, int y0)
+    {
+        if(x0 < 0 || y0 < 0 || x0 >= width || y0 >= height)
+            throw new IndexOutOfBoundsException("(" + x0 + ", " + y0 + ")");
+    }
+    
+    public SC2Map getMap()
+    {
+        return map;
+    }
+    
+    public Palette getPalette()
+    {
+        return palette;
+    }
+    
+    public void setPalette(Palette palette)
+    {
+        this.palette = palette;
+    }
+    
+    // passes write through here, so their blocks are staged with the tile
+    public Canvas getTileCanvas()
+    {
+        return buffer;
+    }
+    
+    public Canvas getCanvas()
+    {
+        return canvas;
+    }
+    
+    public long getBlockWrites()
+    {
+        return buffer.getBlockWrites();
+    }
+    
+    public long getCanvasWrites()
+    {
+        return buffer.getCanvasWrites();
+    }
+    
     protected void renderChunk(int x0, int y0)
     {
-        TerrainMap terra = map.getTerrainMap();
+        // stage all passes for this tile, then write each block once
+        beginTile(x0, y0);
         
-        // generate terrain
-        renderTerrain(x0, y0);
+        for(int i=0; i<enabledPasses.length; i++)
+        {
+            RenderPass pass = enabledPasses[i];
+            if(!pass.isActive(this, x0, y0))
+                continue;
+            
+            long start = System.nanoTime();
+            pass.render(this, x0, y0);
+            passNanos[enabledIndices[i]] += System.nanoTime() - start;
+            passTiles[enabledIndices[i]]++;
+        }
         
-        // generate waterfalls
-        if(terra.isWaterfall(x0, y0))
-            renderWaterfall(x0, y0);
+        buffer.flush();
+    }
+    
+    // runs a single pass over one tile, flushing its writes straight away
+    public void renderPass(RenderPass pass, int x0, int y0)
+    {
+        checkTile(x0, y0);
         
-        StructureMap struct = map.getStructureMap();
-
-        // generate shrub
-        if(struct.isEmptyLot(x0, y0))
-            renderEmptyLot(x0, y0);
+        if(!pass.isActive(this, x0, y0))
+            return;
         
-        // generate roads
-        if(struct.isRoad(x0, y0))
-            renderRoad(x0, y0);
-
-        // generate highway
-        if(struct.isHighway(x0, y0))
-            renderHighway(x0, y0);
-
-        // generate rail
-        if(struct.isRail(x0, y0))
-            renderRail(x0, y0);
-
-        // generate powerline
-        if(struct.isPowerline(x0, y0))
-            renderPowerline(x0, y0);
+        int index = passes.indexOf(pass);
+        if(index < 0)
+            throw new IllegalArgumentException("Unknown pass " + pass.getName());
+        
+        beginTile(x0, y0);
+        
+        long start = System.nanoTime();
+        pass.render(this, x0, y0);
+        passNanos[index] += System.nanoTime() - start;
+        passTiles[index]++;
         
-        // generate trees
-        int numTrees = (int)(struct.getTreeDensity(x0, y0) * 1.5);        
-        for(int i=0; i<numTrees; i++)
-            renderTree(x0, y0);
+        buffer.flush();
+    }
+    
+    protected void beginTile(int x0, int y0)
+    {
+        buffer.begin(getScaledCoordinate(x0, xOrigin), getScaledCoordinate(y0, yOrigin));
+        
+        // evaluate the whole tile's altitude once for every pass
+        if(tileAltitudes == null)
+        {
+            computeTileAltitudes(x0, y0, altitudes);
+        }
+        else
+        {
+            int[] cached = tileAltitudes[x0 + y0 * width];
+            
+            if(cached == null)
+            {
+                cached = new int[grid_scale * grid_scale];
+                computeTileAltitudes(x0, y0, cached);
+                tileAltitudes[x0 + y0 * width] = cached;
+            }
+            
+            System.arraycopy(cached, 0, altitudes, 0, cached.length);
+        }
+        
+        tileX = getScaledCoordinate(x0, xOrigin);
+        tileY = getScaledCoordinate(y0, yOrigin);
     }
     
     protected void renderTerrain(int x0, int y0)
     {
-        int xStart = getScaledCoordinate(x0, width);
-        int yStart = getScaledCoordinate(y0, height);
+        int xStart = getScaledCoordinate(x0, xOrigin);
+        int yStart = getScaledCoordinate(y0, yOrigin);
         int xEnd = xStart + grid_scale;
         int yEnd = yStart + grid_scale;
+        
+        // materials depend on the tile, so they are picked once here rather than per block
+        int flags = palette.getTileFlags(map, x0, y0);
+        Biome biome = palette.getBiome(flags);
                                 
         // generate terrain
         for(int y=yStart; y<yEnd; y++)
             for(int x=xStart; x<xEnd; x++)
-                renderColumn(x, y, getScaledAltitude(x, y), getScaledWaterAltitude(x, y));
+                renderColumn(x, y, getTileAltitude(x, y), getScaledWaterAltitude(x, y), flags, biome);
     }
 
     protected void renderEmptyLot(int x0, int y0)
     {
-        if(map.getTerrainMap().isFlooded(x0, y0) || rand.nextDouble() > 0.02)
+        if(map.getTerrainMap().isFlooded(x0, y0) || rand.nextDouble() > empty_lot_shrub_chance)
             return;
 
-        int x = getScaledCoordinate(x0, width) + rand.nextInt(grid_scale);
-        int y = getScaledCoordinate(y0, height) + rand.nextInt(grid_scale);
+        int x = getScaledCoordinate(x0, xOrigin) + rand.nextInt(grid_scale);
+        int y = getScaledCoordinate(y0, yOrigin) + rand.nextInt(grid_scale);
         
-        canvas.setBlock(x, getScaledAltitude(x, y), y, Block.SHRUB);
+        buffer.setBlock(x, getTileAltitude(x, y), y, palette.getMaterial(Palette.shrub));
     }
     
     protected void renderWaterfall(int x0, int y0)
     {
-        int xStart = getScaledCoordinate(x0, width);
-        int yStart = getScaledCoordinate(y0, height);
+        int xStart = getScaledCoordinate(x0, xOrigin);
+        int yStart = getScaledCoordinate(y0, yOrigin);
         int xEnd = xStart + grid_scale;
         int yEnd = yStart + grid_scale;
         int altStart = map.getTerrainMap().getTerrainAltitude(x0, y0) * grid_scale - 1;
         int altEnd = altStart + grid_scale;
+        Block water = palette.getMaterial(Palette.water);
+        Block flowingWater = palette.getMaterial(Palette.flowing_water);
                 
         for(int y=yStart; y<yEnd; y++)
         {
             for(int x=xStart; x<xEnd; x++)
             {
-                Block block = Block.WATER;                
+                Block block = water;                
                 if(x == xStart || x == xEnd - 1 || y == yStart || y == yEnd - 1)
-                    block = Block.getBlock(9, 8);
+                    block = flowingWater;
                 
                 for(int alt=altStart; alt<=altEnd; alt++)
-                    canvas.setBlock(x, alt, y, block);
+                    buffer.setBlock(x, alt, y, block);
             }
         }
     }
 
     protected void renderTree(int x0, int y0)
     {                   
-        int x = getScaledCoordinate(x0, width) + rand.nextInt(grid_scale);
-        int y = getScaledCoordinate(y0, height) + rand.nextInt(grid_scale);
+        int x = getScaledCoordinate(x0, xOrigin) + rand.nextInt(grid_scale);
+        int y = getScaledCoordinate(y0, yOrigin) + rand.nextInt(grid_scale);
         int height = 6 + rand.nextInt(4);
         
-        int altitude = getScaledAltitude(x, y);
+        int altitude = getTileAltitude(x, y);
         
         // leaves around trunk
         for(int i=2; i<height; i++)
             for(int j=0; j<3; j++)
                 for(int k=0; k<3; k++)
                     if((i & 1) == 0 || (j & 1) != (k & 1))
-                        canvas.setBlock(x + j - 1, altitude + i, y + k - 1, Block.getBlock(18));
+                        renderLeaves(x + j - 1, altitude + i, y + k - 1);
 
         // leaves at top
-        canvas.setBlock(x, altitude + height, y, Block.getBlock(18));
+        renderLeaves(x, altitude + height, y);
         
         // trunk
+        Block wood = palette.getMaterial(Palette.wood);
         for(int i=0; i<height; i++)
-            canvas.setBlock(x, altitude + i, y, Block.WOOD);
+            buffer.setBlock(x, altitude + i, y, wood);
 
         // dirt underneath (unless on slope)
         if(isBuried(x, altitude - 1, y))
-            canvas.setBlock(x, altitude - 1, y, Block.DIRT);        
+            buffer.setBlock(x, altitude - 1, y, palette.getMaterial(Palette.tree_soil));        
+    }
+
+    protected void renderLeaves(int x, int y, int z)
+    {
+        // leaves only fill air, so trees spilling into a neighbor render the same in any order
+        if(isTerrainSolid(x, y, z))
+            return;
+        
+        Block block = buffer.getBlock(x, y, z);
+        if(block == null || block.getID() == 0)
+            buffer.setBlock(x, y, z, palette.getMaterial(Palette.leaves));
     }
 
     protected void renderRail(int x0, int y0)
@@ -182,91 +740,289 @@ public class Converter
     {
         // TODO: not yet implemented
 
-        int xStart = getScaledCoordinate(x0, width);
-        int yStart = getScaledCoordinate(y0, height);
+        int xStart = getScaledCoordinate(x0, xOrigin);
+        int yStart = getScaledCoordinate(y0, yOrigin);
         int xEnd = xStart + grid_scale;
         int yEnd = yStart + grid_scale;
+        Block road = palette.getMaterial(Palette.road);
         
         // generate concrete
         for(int y=yStart; y<yEnd; y++)
             for(int x=xStart; x<xEnd; x++)
-                canvas.setBlock(x, getScaledAltitude(x, y) - 1, y, Block.STONE);
+                buffer.setBlock(x, getTileAltitude(x, y) - 1, y, road);
     }
 
     protected void renderHighway(int x0, int y0)
     {
         // TODO: not yet implemented
 
-        int xStart = getScaledCoordinate(x0, width);
-        int yStart = getScaledCoordinate(y0, height);
+        int xStart = getScaledCoordinate(x0, xOrigin);
+        int yStart = getScaledCoordinate(y0, yOrigin);
         int xEnd = xStart + grid_scale;
         int yEnd = yStart + grid_scale;
 
         TerrainMap terra = map.getTerrainMap();
         int waterAlt = terra.getWaterAltitude(x0, y0) * grid_scale;
+        Block highway = palette.getMaterial(Palette.highway);
                 
         // generate elevated road
         for(int y=yStart; y<yEnd; y++)
             for(int x=xStart; x<xEnd; x++)
-                canvas.setBlock(x, Math.max(waterAlt, getScaledAltitude(x, y)) + 16, y, Block.STONE);
+                buffer.setBlock(x, Math.max(waterAlt, getTileAltitude(x, y)) + 16, y, highway);
     }
     
-    protected void renderColumn(int x, int y, int terrainAltitude, int waterAltitude)
+    protected void renderUnderground(int x0, int y0)
+    {
+        UndergroundMap under = map.getUndergroundMap();
+        
+        // later passages cut through earlier ones where networks cross
+        if(under.hasNetwork(UndergroundMap.pipe, x0, y0))
+        {
+            int floor = under.getNetworkAltitude(UndergroundMap.pipe, x0, y0) * grid_scale - pipe_depth;
+            renderPassage(x0, y0, UndergroundMap.pipe, floor, getPassageRadius(UndergroundMap.pipe, false), 
+                    passage_height[UndergroundMap.pipe], palette.getMaterial(Palette.pipe_wall), 
+                    palette.getMaterial(Palette.pipe_fill));
+        }
+        
+        if(under.hasNetwork(UndergroundMap.subway, x0, y0))
+        {
+            int floor = under.getNetworkAltitude(UndergroundMap.subway, x0, y0) * grid_scale - subway_depth;
+            int radius = getPassageRadius(UndergroundMap.subway, under.isStation(x0, y0));
+            renderPassage(x0, y0, UndergroundMap.subway, floor, radius, passage_height[UndergroundMap.subway], 
+                    palette.getMaterial(Palette.subway_wall), Block.AIR);
+        }
+        
+        if(under.hasNetwork(UndergroundMap.tunnel, x0, y0))
+        {
+            int floor = under.getNetworkAltitude(UndergroundMap.tunnel, x0, y0) * grid_scale + 1;
+            renderPassage(x0, y0, UndergroundMap.tunnel, floor, getPassageRadius(UndergroundMap.tunnel, false), 
+                    passage_height[UndergroundMap.tunnel], palette.getMaterial(Palette.tunnel_wall), Block.AIR);
+        }
+    }
+    
+    protected static int getPassageRadius(int type, boolean station)
+    {
+        return type == UndergroundMap.subway && station ? station_radius : passage_radius[type];
+    }
+    
+    // blocks written by one passage tile before clipping to the surface, 
+    // following the boxes drawn by renderPassage
+    public static int getPassageWrites(int type, boolean station, int branches)
+    {
+        int writes = 0;
+        
+        for(int grow=1; grow>=0; grow--)
+        {
+            int side = (getPassageRadius(type, station) + grow) * 2 + 1;
+            int height = passage_height[type] + grow * 2;
+            
+            writes += side * side * height;
+            writes += branches * side * ((grid_scale >> 1) + 1) * height;
+        }
+        
+        return writes;
+    }
+    
+    protected void renderPassage(int x0, int y0, int type, int floor, int radius, int height, Block wall, Block fill)
+    {
+        // keep the walls above bedrock
+        if(floor < 2)
+            return;
+        
+        UndergroundMap under = map.getUndergroundMap();
+        int xStart = getScaledCoordinate(x0, xOrigin);
+        int yStart = getScaledCoordinate(y0, yOrigin);
+        int xEnd = xStart + grid_scale - 1;
+        int yEnd = yStart + grid_scale - 1;
+        int xc = xStart + (grid_scale >> 1);
+        int yc = yStart + (grid_scale >> 1);
+        
+        // walls first, then the inside, so that branches meeting at the center stay open
+        for(int grow=1; grow>=0; grow--)
+        {
+            Block block = grow > 0 ? wall : fill;
+            int r = radius + grow;
+            int bottom = floor - grow;
+            int top = floor + height - 1 + grow;
+            
+            renderBox(xc - r, yc - r, xc + r, yc + r, bottom, top, block);
+            
+            // branches run to the tile edge toward connected neighbors
+            if(under.hasNetwork(type, x0 - 1, y0))
+                renderBox(xStart, yc - r, xc, yc + r, bottom, top, block);
+            if(under.hasNetwork(type, x0 + 1, y0))
+                renderBox(xc, yc - r, xEnd, yc + r, bottom, top, block);
+            if(under.hasNetwork(type, x0, y0 - 1))
+                renderBox(xc - r, yStart, xc + r, yc, bottom, top, block);
+            if(under.hasNetwork(type, x0, y0 + 1))
+                renderBox(xc - r, yc, xc + r, yEnd, bottom, top, block);
+        }
+    }
+    
+    protected void renderBox(int x1, int y1, int x2, int y2, int bottom, int top, Block block)
+    {
+        // stay below the surface so that tunnels open where the hillside ends
+        for(int y=y1; y<=y2; y++)
+        {
+            for(int x=x1; x<=x2; x++)
+            {
+                int surface = Math.min(top + 1, getTileAltitude(x, y));
+                for(int height=bottom; height<surface; height++)
+                    buffer.setBlock(x, height, y, block);
+            }
+        }
+    }
+    
+    protected void renderColumn(int x, int y, int terrainAltitude, int waterAltitude, int flags, Biome biome)
     {        
         for(int height=1; height<terrainAltitude; height++)
-            canvas.setBlock(x, height, y, getTerrainMaterial(terrainAltitude - height));
+            buffer.setBlock(x, height, y, palette.getTerrainBlock(flags, terrainAltitude - height));
         
+        Block water = palette.getMaterial(Palette.water);
         for(int height=terrainAltitude; height<waterAltitude; height++)
-            canvas.setBlock(x, height, y, Block.WATER);
+            buffer.setBlock(x, height, y, water);
         
-        canvas.setBlock(x, 0, y, Block.BEDROCK);
-        canvas.setBiome(x, y, Biome.FOREST);
+        buffer.setBlock(x, 0, y, palette.getMaterial(Palette.bedrock));
+        buffer.setBiome(x, y, biome);
     }
 
-    protected Block getTerrainMaterial(int depth)
+    public int getOriginX()
     {
-        if(depth <= 1)
-            return Block.SANDSTONE;
-        else if(depth <= 3)
-            return Block.DIRT;
-        else
-            return Block.STONE;
-    }    
+        return xOrigin;
+    }
+    
+    public int getOriginY()
+    {
+        return yOrigin;
+    }
+
+    public static int getDefaultOrigin(int tiles)
+    {
+        return -(tiles >> 1) * grid_scale;
+    }
+    
+    public static int getGridScale()
+    {
+        return grid_scale;
+    }
+    
+    public int getBlockX(int x0)
+    {
+        return getScaledCoordinate(x0, xOrigin);
+    }
+    
+    public int getBlockY(int y0)
+    {
+        return getScaledCoordinate(y0, yOrigin);
+    }
+
+    public long getTileSeed(int x0, int y0, long salt)
+    {
+        // seed from world tile coordinates, so tiles render the same in any order
+        long x = getScaledCoordinate(x0, xOrigin) / grid_scale;
+        long y = getScaledCoordinate(y0, yOrigin) / grid_scale;
+        return (x * 341873128712L + y * 132897987541L) ^ salt;
+    }
 
-    protected int getScaledCoordinate(int p0, int size)
+    protected int getScaledCoordinate(int p0, int origin)
     {
-        return p0 * grid_scale - (size >> 1) * grid_scale;
+        return origin + p0 * grid_scale;
     }
     
     protected int getScaledAltitude(int x, int y)
     {
-        float xs = (width >> 1) + (x + 0.5f) / grid_scale;
-        float ys = (height >> 1) + (y + 0.5f) / grid_scale;
+        float xs = (x - xOrigin + 0.5f) / grid_scale;
+        float ys = (y - yOrigin + 0.5f) / grid_scale;
         return (int)(map.getTerrainMap().getSmoothAltitude(xs, ys) * grid_scale);
     }
 
+    protected void computeTileAltitudes(int x0, int y0, int[] out)
+    {
+        map.getTerrainMap().getSmoothAltitudes(x0, y0, grid_scale, smoothAltitudes);
+        
+        for(int i=0; i<out.length; i++)
+            out[i] = (int)(smoothAltitudes[i] * grid_scale);
+    }
+    
+    public int getTileAltitude(int x, int y)
+    {
+        int xr = x - tileX;
+        int yr = y - tileY;
+        
+        if(xr >= 0 && xr < grid_scale && yr >= 0 && yr < grid_scale)
+            return altitudes[xr + yr * grid_scale];
+        
+        return getScaledAltitude(x, y);
+    }
+
     protected int getScaledWaterAltitude(int x, int y)
     {
-        int xs = (width >> 1) + x / grid_scale;
-        int ys = (height >> 1) + y / grid_scale;
+        int xs = (x - xOrigin) / grid_scale;
+        int ys = (y - yOrigin) / grid_scale;
         return map.getTerrainMap().getWaterAltitude(xs, ys) * grid_scale;
     }
     
     protected boolean isBuried(int x, int y, int z)
     {
-        return canvas.getBlock(x - 1, y, z).isOpaque()
-            && canvas.getBlock(x, y, z - 1).isOpaque()
-            && canvas.getBlock(x + 1, y, z).isOpaque()
-            && canvas.getBlock(x, y, z + 1).isOpaque();
+        // ask the terrain rather than the canvas, so the answer does not 
+        // depend on which neighboring tiles have been rendered yet
+        return isTerrainSolid(x - 1, y, z)
+            && isTerrainSolid(x, y, z - 1)
+            && isTerrainSolid(x + 1, y, z)
+            && isTerrainSolid(x, y, z + 1);
     }
     
-    protected static int getPercentage(int y0)
+    protected boolean isTerrainSolid(int x, int y, int z)
     {
-        return (y0 * 100) / height;
+        int x0 = x - xOrigin;
+        int z0 = z - yOrigin;
+        
+        if(x0 < 0 || x0 >= width * grid_scale || z0 < 0 || z0 >= height * grid_scale)
+            return false;
+        
+        return y >= 1 && y < getTileAltitude(x, z);
+    }
+    
+    protected static int getPercentage(int rows, int total)
+    {
+        return (rows * 100) / total;
     }
     
     protected static void log(String str)
     {
         System.out.println(str);
     }
-}
\ No newline at end of file
+    
+    protected static abstract class BuiltinPass implements RenderPass
+    {
+        protected final String name;
+        protected final Footprint read, write;
+        
+        protected BuiltinPass(String name, Footprint read, Footprint write)
+        {
+            this.name = name;
+            this.read = read;
+            this.write = write;
+        }
+        
+        public String getName()
+        {
+            return name;
+        }
+        
+        public Footprint getReadFootprint()
+        {
+            return read;
+        }
+        
+        public Footprint getWriteFootprint()
+        {
+            return write;
+        }
+        
+        public boolean isActive(Converter converter, int x0, int y0)
+        {
+            return true;
+        }
+    }
+}
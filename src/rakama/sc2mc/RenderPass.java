@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+package rakama.sc2mc;
+
+public interface RenderPass
+{
+    // how far from its own tile a pass reads or writes the canvas, a halo 
+    // reaches into neighboring tiles by at most half a tile
+    public enum Footprint {NONE, TILE, HALO}
+    
+    public String getName();
+    
+    public Footprint getReadFootprint();
+    
+    public Footprint getWriteFootprint();
+    
+    public boolean isActive(Converter converter, int x0, int y0);
+    
+    public void render(Converter converter, int x0, int y0);
+}
@@ -20,9 +20,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 
+import rakama.sc2mc.canvas.MappedCanvas;
+import rakama.sc2mc.export.RegionWriter;
 import rakama.sc2mc.map.SC2Map;
-import rakama.worldtools.WorldManager;
-import rakama.worldtools.canvas.WorldCanvas;
+import rakama.sc2mc.palette.Palette;
+import rakama.sc2mc.palette.Theme;
 
 public class SC2MC
 {
@@ -31,19 +33,58 @@ public class SC2MC
 
     public static void main(String[] args) throws IOException
     {
-        SC2Map map = SC2Map.loadMap(new FileInputStream(new File(input)));
-        WorldManager manager = WorldManager.getWorldManager(new File(output));
+        // SC2MC [input] [output] [scratch file] [theme file], a scratch file of - keeps it in the output
+        String inputPath = args.length > 0 ? args[0] : input;
+        String outputPath = args.length > 1 ? args[1] : output;
+        File world = new File(outputPath);
+        File scratchFile = args.length > 2 && !args[2].equals("-") ? new File(args[2]) : new File(world, "sc2mc.scratch");
+        
+        // an invalid theme should fail before anything is written
+        Palette palette = args.length > 3 ? Theme.loadTheme(new File(args[3])).compile() : Palette.getDefaultPalette();
+        
+        SC2Map map = SC2Map.loadMap(new FileInputStream(new File(inputPath)));
                 
         System.out.println("Reticulating mines...");
 
-        WorldCanvas canvas = manager.getCanvas();
-        Converter converter = new Converter(map, canvas);
-        converter.convert(true);
-
-        System.out.println("Saving open chunks ...");
-        
-        manager.closeAll();
+        convertWithScratch(map, world, scratchFile, palette);
         
         System.out.println("Finished!");  
     }
-}
\ No newline at end of file
+    
+    protected static void convertWithScratch(SC2Map map, File world, File scratchFile, 
+            Palette palette) throws IOException
+    {
+        // leave a chunk of margin for trees that overhang the map edge
+        int xMin = -(map.getTerrainMap().getWidth() << 3) - 16;
+        int zMin = -(map.getTerrainMap().getHeight() << 3) - 16;
+        int width = (map.getTerrainMap().getWidth() << 4) + 32;
+        int depth = (map.getTerrainMap().getHeight() << 4) + 32;
+        
+        // a scratch file left over from an earlier run would leak into this one
+        world.mkdirs();
+        scratchFile.delete();
+        MappedCanvas scratch = MappedCanvas.createCanvas(scratchFile, xMin, zMin, width, depth);
+        
+        try
+        {
+            Converter converter = new Converter(map, scratch);
+            converter.setPalette(palette);
+            converter.convert(true);
+            
+            System.out.println("Writing " + scratch.getPageCount() + " sections...");
+            
+            // chunks are lit as they are written, so every block has to be in place first
+            RegionWriter writer = new RegionWriter(world);
+            writer.write(scratch);
+            writer.close();
+            
+            System.out.println("Wrote " + writer.getChunks() + " chunks, " + writer.getDedupedChunks() 
+                    + " reused an already compressed chunk");
+        }
+        finally
+        {
+            scratch.close();
+            scratchFile.delete();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+package rakama.sc2mc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import rakama.sc2mc.RenderPass.Footprint;
+import rakama.sc2mc.canvas.MappedCanvas;
+import rakama.sc2mc.canvas.StripedCanvas;
+import rakama.sc2mc.export.RegionWriter;
+import rakama.sc2mc.map.SC2Map;
+import rakama.sc2mc.palette.Palette;
+import rakama.sc2mc.palette.Theme;
+
+public class SweepScheduler
+{
+    protected Converter converter;
+    protected StripedCanvas canvas;
+    protected int threadCount;
+    
+    protected List<RenderPass> sweptPasses;
+    protected List<Long> sweepNanos;
+    protected long blockWrites, canvasWrites;
+    
+    // writes are serialised through a single lock, since the converter's canvas may be
+    // a WorldCanvas, a MappedCanvas can take concurrent chunks through the other constructor
+    public SweepScheduler(Converter converter)
+    {
+        this(converter, Runtime.getRuntime().availableProcessors(), false);
+    }
+    
+    // concurrentChunks says whether the converter's canvas allows concurrent 
+    // access to different chunks, otherwise all writes share a single lock
+    public SweepScheduler(Converter converter, int threadCount, boolean concurrentChunks)
+    {
+        if(threadCount < 1)
+            throw new IllegalArgumentException("Invalid thread count " + threadCount);
+        
+        this.converter = converter;
+        this.threadCount = threadCount;
+        this.canvas = new StripedCanvas(converter.getCanvas(), concurrentChunks ? threadCount * 8 : 1);
+        this.sweptPasses = new ArrayList<RenderPass>();
+        this.sweepNanos = new ArrayList<Long>();
+    }
+    
+    public void convert(boolean verbose)
+    {
+        SC2Map map = converter.getMap();
+        convert(0, 0, map.getTerrainMap().getWidth(), map.getTerrainMap().getHeight(), verbose);
+    }
+    
+    public void convert(int x0, int y0, int x1, int y1, boolean verbose)
+    {
+        SC2Map map = converter.getMap();
+        int width = map.getTerrainMap().getWidth();
+        int height = map.getTerrainMap().getHeight();
+        
+        if(x0 < 0 || y0 < 0 || x1 > width || y1 > height || x0 >= x1 || y0 >= y1)
+            throw new IndexOutOfBoundsException("(" + x0 + ", " + y0 + ") to (" + x1 + ", " + y1 + ")");
+        
+        // a tile only owns its altitudes within a pass, so they are kept for the next one
+        converter.tileAltitudes = new int[width * height][];
+        
+        // each thread renders with its own converter, so tile state is never shared
+        Converter[] forks = new Converter[threadCount];
+        for(int i=0; i<threadCount; i++)
+            forks[i] = converter.fork(canvas);
+        
+        ExecutorService threads = Executors.newFixedThreadPool(threadCount);
+        
+        try
+        {
+            for(RenderPass pass : converter.getPasses())
+            {
+                if(!converter.isPassEnabled(pass))
+                    continue;
+                
+                long start = System.nanoTime();
+                
+                // a pass reaching into its neighbors only runs beside tiles two apart
+                if(isTileLocal(pass))
+                    sweep(threads, forks, pass, x0, y0, x1, y1, 0, 0, 1);
+                else
+                    for(int phase=0; phase<4; phase++)
+                        sweep(threads, forks, pass, x0, y0, x1, y1, phase & 1, phase >> 1, 2);
+                
+                long elapsed = System.nanoTime() - start;
+                sweptPasses.add(pass);
+                sweepNanos.add(elapsed);
+                
+                if(verbose)
+                    log("Swept " + pass.getName() + " in " + (elapsed / 1000000) + " ms");
+            }
+        }
+        finally
+        {
+            threads.shutdown();
+            converter.tileAltitudes = null;
+        }
+        
+        // rows are only complete once the last pass has swept them
+        for(int y=y0; y<y1; y++)
+            for(int i=0; i<converter.listeners.size(); i++)
+                converter.listeners.get(i).tileRowCompleted(converter, y);
+        
+        for(Converter fork : forks)
+        {
+            blockWrites += fork.getBlockWrites();
+            canvasWrites += fork.getCanvasWrites();
+        }
+        
+        if(verbose)
+        {
+            log("Wrote " + canvasWrites + " blocks (" + (blockWrites - canvasWrites) + " overdrawn writes eliminated)");
+            
+            for(RenderPass pass : converter.getPasses())
+            {
+                long tiles = 0;
+                long nanos = 0;
+                
+                for(Converter fork : forks)
+                {
+                    tiles += fork.getPassTiles(pass);
+                    nanos += fork.getPassNanos(pass);
+                }
+                
+                if(tiles > 0)
+                    log("  " + pass.getName() + ": " + tiles + " tiles in " + (nanos / 1000000) + " ms");
+            }
+        }
+    }
+    
+    protected void sweep(ExecutorService threads, final Converter[] forks, final RenderPass pass, 
+            final int x0, final int y0, final int x1, final int y1, final int xPhase, final int yPhase, final int stride)
+    {
+        final AtomicInteger nextRow = new AtomicInteger(y0 + yPhase);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        
+        for(int i=0; i<forks.length; i++)
+        {
+            final Converter fork = forks[i];
+            
+            tasks.add(new Callable<Object>()
+            {
+                public Object call()
+                {
+                    // threads claim whole rows until none are left
+                    for(int y=nextRow.getAndAdd(stride); y<y1; y=nextRow.getAndAdd(stride))
+                        for(int x=x0 + xPhase; x<x1; x+=stride)
+                            fork.renderPass(pass, x, y);
+                    
+                    return null;
+                }
+            });
+        }
+        
+        try
+        {
+            for(Future<Object> result : threads.invokeAll(tasks))
+                result.get();
+        }
+        catch(ExecutionException e)
+        {
+            if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            
+            throw new RuntimeException(e.getCause());
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+    
+    protected static boolean isTileLocal(RenderPass pass)
+    {
+        return pass.getReadFootprint() != Footprint.HALO && pass.getWriteFootprint() != Footprint.HALO;
+    }
+    
+    public long getSweepNanos(RenderPass pass)
+    {
+        long nanos = 0;
+        
+        for(int i=0; i<sweptPasses.size(); i++)
+            if(sweptPasses.get(i) == pass)
+                nanos += sweepNanos.get(i);
+        
+        return nanos;
+    }
+    
+    public long getBlockWrites()
+    {
+        return blockWrites;
+    }
+    
+    public long getCanvasWrites()
+    {
+        return canvasWrites;
+    }
+    
+    public static void main(String[] args) throws IOException
+    {
+        // SweepScheduler input output [threads] [theme file] [-pass ...]
+        if(args.length < 2)
+        {
+            log("Usage: SweepScheduler input output [threads] [theme file] [-pass ...]");
+            return;
+        }
+        
+        int threads = Runtime.getRuntime().availableProcessors();
+        Palette palette = Palette.getDefaultPalette();
+        List<String> skipped = new ArrayList<String>();
+        
+        // passes named with a leading dash are skipped, e.g. -trees, an invalid theme 
+        // should fail before anything is written
+        for(int i=2; i<args.length; i++)
+        {
+            if(args[i].startsWith("-"))
+                skipped.add(args[i].substring(1));
+            else if(args[i].matches("[0-9]+"))
+                threads = Integer.parseInt(args[i]);
+            else
+                palette = Theme.loadTheme(new File(args[i])).compile();
+        }
+        
+        SC2Map map = SC2Map.loadMap(new FileInputStream(new File(args[0])));
+        File world = new File(args[1]);
+        
+        // chunks are written and lit from a scratch canvas, which can be written concurrently
+        int xMin = -(map.getTerrainMap().getWidth() << 3) - 16;
+        int zMin = -(map.getTerrainMap().getHeight() << 3) - 16;
+        int width = (map.getTerrainMap().getWidth() << 4) + 32;
+        int depth = (map.getTerrainMap().getHeight() << 4) + 32;
+        
+        File scratchFile = File.createTempFile("sweep", ".scratch");
+        scratchFile.deleteOnExit();
+        scratchFile.delete();
+        
+        MappedCanvas scratch = MappedCanvas.createCanvas(scratchFile, xMin, zMin, width, depth);
+        Converter converter = new Converter(map, scratch);
+        converter.setPalette(palette);
+        for(String pass : skipped)
+            converter.setPassEnabled(pass, false);
+        
+        log("Reticulating mines...");
+        
+        new SweepScheduler(converter, threads, true).convert(true);
+        
+        log("Writing " + scratch.getPageCount() + " sections...");
+        
+        try
+        {
+            RegionWriter writer = new RegionWriter(world);
+            writer.write(scratch);
+            writer.close();
+        }
+        finally
+        {
+            scratch.close();
+            scratchFile.delete();
+        }
+        
+        log("Finished!");
+    }
+    
+    protected static void log(String str)
+    {
+        System.out.println(str);
+    }
+}
@@ -0,0 +1,660 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.sun.management.ThreadMXBean;
+
+import rakama.sc2mc.ConversionListener;
+import rakama.sc2mc.Converter;
+import rakama.sc2mc.canvas.MappedCanvas;
+import rakama.sc2mc.estimate.CostModel;
+import rakama.sc2mc.estimate.MapStatistics;
+import rakama.sc2mc.map.SC2Map;
+import rakama.sc2mc.synth.MapGenerator;
+
+public class Benchmark
+{
+    protected static final int default_iterations = 3;
+    protected static final double default_threshold = 0.1;
+    protected static final int max_reported_regions = 10;
+    protected static final long fnv_offset = 0xcbf29ce484222325L;
+    protected static final long fnv_prime = 0x100000001b3L;
+    protected static final long default_allocation_budget = 16;
+    protected static final long unsupported = -1;
+    
+    // allocation is sampled in bands of rows spread over the whole map
+    protected static final int allocation_bands = 8;
+    protected static final int allocation_band_rows = 2;
+    
+    protected int iterations;
+    protected double threshold;
+    protected long allocationBudget;
+    protected Map<String, byte[]> inputs;
+    
+    public Benchmark(int iterations, double threshold)
+    {
+        this.iterations = iterations;
+        this.threshold = threshold;
+        this.allocationBudget = default_allocation_budget;
+        this.inputs = new TreeMap<String, byte[]>();
+    }
+    
+    public void setAllocationBudget(long allocationBudget)
+    {
+        this.allocationBudget = allocationBudget;
+    }
+    
+    public void addInput(String name, byte[] data)
+    {
+        inputs.put(name, data);
+    }
+
+    public void addInput(File file) throws IOException
+    {
+        addInput(file.getName(), readFile(file));
+    }
+    
+    public void addSyntheticInputs() throws IOException
+    {
+        for(String preset : MapGenerator.presets)
+            addInput("synthetic-" + preset, MapGenerator.getPreset(preset).generate());
+    }
+    
+    public void addFixtures(File dir) throws IOException
+    {
+        // checked in maps that stay fixed when the generator changes
+        File[] files = dir.listFiles();
+        if(files == null)
+            return;
+        
+        for(File file : files)
+            if(file.getName().endsWith(".sc2"))
+                addInput(file);
+    }
+    
+    public List<Result> run() throws IOException
+    {
+        List<Result> results = new ArrayList<Result>();
+        
+        for(Map.Entry<String, byte[]> input : inputs.entrySet())
+        {
+            Result result = run(input.getKey(), input.getValue());
+            results.add(result);
+            
+            log(result.name + ": " + (result.nanos / 1000000) + " ms, " 
+                    + (long)result.getBlocksPerSecond() + " blocks/s, " 
+                    + (result.peakHeap >> 20) + " MB peak heap, " 
+                    + result.hashes.size() + " chunks, " 
+                    + (result.allocatedPerTile == unsupported ? "allocation unsupported" 
+                            : result.allocatedPerTile + " bytes allocated per tile"));
+        }
+        
+        return results;
+    }
+    
+    protected Result run(String name, byte[] data) throws IOException
+    {
+        Result best = null;
+        
+        for(int i=0; i<iterations; i++)
+        {
+            System.gc();
+            resetPeakHeap();
+            
+            long start = System.nanoTime();
+            
+            SC2Map map = SC2Map.loadMap(new ByteArrayInputStream(data));
+            final HashingCanvas canvas = new HashingCanvas();
+            Converter converter = new Converter(map, canvas);
+            
+            // hash chunks as soon as no later tile can touch them
+            converter.addListener(new ConversionListener()
+            {
+                public void tileRowCompleted(Converter converter, int y0)
+                {
+                    canvas.finishChunksBefore(converter.getBlockY(y0));
+                }
+            });
+            
+            converter.convert(false);
+            canvas.finishAll();
+            
+            Result result = new Result(name);
+            result.nanos = System.nanoTime() - start;
+            result.blockWrites = converter.getBlockWrites();
+            result.peakHeap = getPeakHeap();
+            result.hashes = canvas.getHashes();
+            
+            if(best != null && !best.hashes.equals(result.hashes))
+                throw new IllegalStateException("Conversion of " + name + " is not deterministic");
+            
+            if(best == null || result.nanos < best.nanos)
+                best = result;
+        }
+        
+        best.allocatedPerTile = measureAllocation(data);
+        return best;
+    }
+    
+    protected static long measureAllocation(byte[] data) throws IOException
+    {
+        Object bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof ThreadMXBean))
+            return unsupported;
+        
+        ThreadMXBean threads = (ThreadMXBean)bean;
+        if(!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+            return unsupported;
+        
+        SC2Map map = SC2Map.loadMap(new ByteArrayInputStream(data));
+        int width = map.getTerrainMap().getWidth();
+        int height = map.getTerrainMap().getHeight();
+        
+        // a throwaway conversion loads classes and fills the static caches, then a fresh one is 
+        // measured, with a new canvas and converter the way a conversion starts in a running JVM
+        File scratchFile = File.createTempFile("sc2mc-allocation", ".scratch");
+        
+        try
+        {
+            MappedCanvas warm = createScratch(scratchFile, width, height);
+            try
+            {
+                convertBands(new Converter(map, warm), width, height);
+            }
+            finally
+            {
+                warm.close();
+            }
+            
+            MappedCanvas canvas = createScratch(scratchFile, width, height);
+            try
+            {
+                // setting up the converter is per conversion, not per tile
+                Converter converter = new Converter(map, canvas);
+                
+                long thread = Thread.currentThread().getId();
+                long before = threads.getThreadAllocatedBytes(thread);
+                int tiles = convertBands(converter, width, height);
+                long allocated = threads.getThreadAllocatedBytes(thread) - before;
+                
+                return allocated / tiles;
+            }
+            finally
+            {
+                canvas.close();
+            }
+        }
+        finally
+        {
+            scratchFile.delete();
+        }
+    }
+    
+    // render into a scratch volume, the canvas most conversions write through
+    protected static MappedCanvas createScratch(File scratchFile, int width, int height) throws IOException
+    {
+        int scale = Converter.getGridScale();
+        scratchFile.delete();
+        return MappedCanvas.createCanvas(scratchFile, 
+                Converter.getDefaultOrigin(width) - 16, Converter.getDefaultOrigin(height) - 16, 
+                width * scale + 32, height * scale + 32);
+    }
+    
+    // the allocation gate on its own, without timing or golden output
+    public boolean checkAllocation() throws IOException
+    {
+        boolean passed = true;
+        
+        for(Map.Entry<String, byte[]> input : inputs.entrySet())
+        {
+            long allocated = measureAllocation(input.getValue());
+            if(allocated == unsupported)
+            {
+                log("Allocation unsupported, this JVM has no thread allocation counters, skipped");
+                return true;
+            }
+            
+            log(input.getKey() + ": " + allocated + " bytes allocated per tile");
+            if(allocated > allocationBudget)
+            {
+                log("FLAG " + input.getKey() + ": " + allocated + " bytes allocated per tile, budget is " + allocationBudget);
+                passed = false;
+            }
+        }
+        
+        return passed;
+    }
+    
+    protected static int convertBands(Converter converter, int width, int height)
+    {
+        int tiles = 0;
+        
+        for(int band=0; band<allocation_bands; band++)
+        {
+            int y0 = (int)((long)band * height / allocation_bands);
+            int y1 = Math.min(height, y0 + allocation_band_rows);
+            converter.convert(0, y0, width, y1, false);
+            tiles += width * (y1 - y0);
+        }
+        
+        return tiles;
+    }
+    
+    public void calibrate(List<Result> results, CostModel model) throws IOException
+    {
+        List<MapStatistics> stats = new ArrayList<MapStatistics>();
+        long[] nanos = new long[results.size()];
+        long[] blockWrites = new long[results.size()];
+        long[] peakHeap = new long[results.size()];
+        
+        for(int i=0; i<results.size(); i++)
+        {
+            Result result = results.get(i);
+            stats.add(MapStatistics.gather(SC2Map.loadMap(new ByteArrayInputStream(inputs.get(result.name)))));
+            nanos[i] = result.nanos;
+            blockWrites[i] = result.blockWrites;
+            peakHeap[i] = result.peakHeap;
+        }
+        
+        model.calibrate(stats, nanos, blockWrites, peakHeap);
+        
+        for(int i=0; i<results.size(); i++)
+            log(results.get(i).name + " estimate: " + model.estimate(stats.get(i)));
+    }
+    
+    // golden output is committed with the code, throughput depends on the machine and is 
+    // only compared against a baseline recorded earlier on the same one
+    public boolean compare(List<Result> results, File golden, File baseline) throws IOException
+    {
+        Map<String, Map<Long, Long>> hashes = new HashMap<String, Map<Long, Long>>();
+        readValues(golden, "region", hashes);
+        
+        Map<String, Map<Long, Long>> throughput = new HashMap<String, Map<Long, Long>>();
+        if(baseline != null && baseline.exists())
+            readValues(baseline, "throughput", throughput);
+        else
+            log("No throughput baseline for this machine, only output is compared");
+        
+        boolean passed = true;
+        
+        for(Result result : results)
+        {
+            // the gate is skipped, not failed, where the JVM can't count allocations
+            if(result.allocatedPerTile == unsupported)
+                log(result.name + ": allocation unsupported, this JVM has no thread allocation counters, skipped");
+            else if(result.allocatedPerTile > allocationBudget)
+            {
+                log("FLAG " + result.name + ": " + result.allocatedPerTile + " bytes allocated per tile, budget is " + allocationBudget);
+                passed = false;
+            }
+            
+            Map<Long, Long> expected = hashes.get(result.name);
+            if(expected == null)
+            {
+                log("FLAG " + result.name + ": no golden values");
+                passed = false;
+                continue;
+            }
+            
+            Map<Long, Long> regions = getRegionHashes(result.hashes);
+            int mismatches = 0;
+            
+            for(Map.Entry<Long, Long> entry : regions.entrySet())
+            {
+                Long hash = expected.get(entry.getKey());
+                if(hash != null && hash.equals(entry.getValue()))
+                    continue;
+                
+                if(mismatches++ < max_reported_regions)
+                    log("FLAG " + result.name + ": region (" + HashingCanvas.toChunkX(entry.getKey()) + ", " 
+                            + HashingCanvas.toChunkZ(entry.getKey()) + ") " + (hash == null ? "is new" : "changed"));
+            }
+            
+            for(Long key : expected.keySet())
+                if(!regions.containsKey(key) && mismatches++ < max_reported_regions)
+                    log("FLAG " + result.name + ": region (" + HashingCanvas.toChunkX(key) + ", " 
+                            + HashingCanvas.toChunkZ(key) + ") is missing");
+            
+            if(mismatches > 0)
+            {
+                log("FLAG " + result.name + ": " + mismatches + " regions differ from golden output");
+                passed = false;
+            }
+            
+            Map<Long, Long> measured = throughput.get(result.name);
+            if(measured == null)
+                continue;
+            
+            double ratio = result.getBlocksPerSecond() / measured.get(0L);
+            if(ratio < 1 - threshold)
+            {
+                log("FLAG " + result.name + ": throughput regressed to " + (int)(ratio * 100) + "% of baseline");
+                passed = false;
+            }
+            else if(ratio > 1 + threshold)
+                log("FLAG " + result.name + ": throughput improved to " + (int)(ratio * 100) + "% of baseline");
+        }
+        
+        return passed;
+    }
+    
+    // chunk hashes folded per 32 x 32 chunk region, which keeps the golden file small
+    public static Map<Long, Long> getRegionHashes(Map<Long, Long> chunkHashes)
+    {
+        Map<Long, Long> regions = new TreeMap<Long, Long>();
+        
+        // chunks are visited in key order, so each region folds them in the same order
+        for(Map.Entry<Long, Long> entry : new TreeMap<Long, Long>(chunkHashes).entrySet())
+        {
+            int chunkX = HashingCanvas.toChunkX(entry.getKey());
+            int chunkZ = HashingCanvas.toChunkZ(entry.getKey());
+            long region = HashingCanvas.toKey(chunkX >> 5, chunkZ >> 5);
+            
+            Long hash = regions.get(region);
+            long value = hash == null ? fnv_offset : hash;
+            value = (value ^ entry.getKey()) * fnv_prime;
+            value = (value ^ entry.getValue()) * fnv_prime;
+            regions.put(region, value);
+        }
+        
+        return regions;
+    }
+    
+    public static void writeGolden(List<Result> results, File golden) throws IOException
+    {
+        PrintWriter out = new PrintWriter(new FileWriter(golden));
+        
+        try
+        {
+            out.println("# region <map> <region x> <region z> <hash of its chunks>");
+            
+            for(Result result : results)
+                for(Map.Entry<Long, Long> entry : getRegionHashes(result.hashes).entrySet())
+                    out.println("region " + result.name + " " + HashingCanvas.toChunkX(entry.getKey()) + " " 
+                            + HashingCanvas.toChunkZ(entry.getKey()) + " " + Long.toHexString(entry.getValue()));
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    public static void writeBaseline(List<Result> results, File baseline) throws IOException
+    {
+        PrintWriter out = new PrintWriter(new FileWriter(baseline));
+        
+        try
+        {
+            out.println("# throughput <map> <blocks per second>, only valid on the machine that wrote it");
+            
+            for(Result result : results)
+                out.println("throughput " + result.name + " " + (long)result.getBlocksPerSecond());
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    protected static void readValues(File file, String type, Map<String, Map<Long, Long>> values) throws IOException
+    {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        
+        try
+        {
+            String line = in.readLine();
+            while(line != null)
+            {
+                String[] tokens = line.trim().split("\\s+");
+                
+                try
+                {
+                    if(tokens[0].equals(type) && tokens.length == 3)
+                    {
+                        getValues(values, tokens[1]).put(0L, Long.parseLong(tokens[2]));
+                    }
+                    else if(tokens[0].equals(type) && tokens.length == 5)
+                    {
+                        long key = HashingCanvas.toKey(Integer.parseInt(tokens[2]), Integer.parseInt(tokens[3]));
+                        getValues(values, tokens[1]).put(key, Long.parseUnsignedLong(tokens[4], 16));
+                    }
+                    else if(tokens[0].length() > 0 && !tokens[0].startsWith("#"))
+                        throw new IOException("Invalid entry '" + line + "' in " + file);
+                }
+                catch(NumberFormatException e)
+                {
+                    throw new IOException("Invalid entry '" + line + "' in " + file);
+                }
+                
+                line = in.readLine();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    protected static Map<Long, Long> getValues(Map<String, Map<Long, Long>> values, String name)
+    {
+        Map<Long, Long> map = values.get(name);
+        if(map == null)
+            values.put(name, map = new HashMap<Long, Long>());
+        
+        return map;
+    }
+    
+    protected static void resetPeakHeap()
+    {
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if(pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+    }
+
+    protected static long getPeakHeap()
+    {
+        long peak = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if(pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        
+        return peak;
+    }
+    
+    protected static byte[] readFile(File file) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        
+        try
+        {
+            byte[] buffer = new byte[65536];
+            int count = in.read(buffer);
+            while(count >= 0)
+            {
+                out.write(buffer, 0, count);
+                count = in.read(buffer);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        
+        return out.toByteArray();
+    }
+    
+    protected static void log(String str)
+    {
+        System.out.println(str);
+    }
+    
+    public static class Result
+    {
+        protected final String name;
+        protected long nanos, blockWrites, peakHeap;
+        protected long allocatedPerTile;
+        protected Map<Long, Long> hashes;
+        
+        protected Result(String name)
+        {
+            this.name = name;
+        }
+        
+        public String getName()
+        {
+            return name;
+        }
+        
+        public long getNanos()
+        {
+            return nanos;
+        }
+        
+        public long getBlockWrites()
+        {
+            return blockWrites;
+        }
+        
+        public long getPeakHeap()
+        {
+            return peakHeap;
+        }
+        
+        public long getAllocatedPerTile()
+        {
+            return allocatedPerTile;
+        }
+        
+        public double getBlocksPerSecond()
+        {
+            return blockWrites * 1e9 / Math.max(1, nanos);
+        }
+        
+        public Map<Long, Long> getHashes()
+        {
+            return hashes;
+        }
+    }
+    
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length < 1)
+        {
+            System.out.println("Usage: Benchmark <golden file> [-baseline <file>] [-update] [-threshold <fraction>] [-iterations <n>] [-allocation] [map.sc2 ...]");
+            return;
+        }
+        
+        File golden = new File(args[0]);
+        File baseline = null;
+        boolean update = false;
+        boolean allocationOnly = false;
+        File calibration = null;
+        long allocationBudget = default_allocation_budget;
+        double threshold = default_threshold;
+        int iterations = default_iterations;
+        List<File> files = new ArrayList<File>();
+        
+        for(int i=1; i<args.length; i++)
+        {
+            if(args[i].equals("-update"))
+                update = true;
+            else if(args[i].equals("-baseline") && i + 1 < args.length)
+                baseline = new File(args[++i]);
+            else if(args[i].equals("-threshold") && i + 1 < args.length)
+                threshold = Double.parseDouble(args[++i]);
+            else if(args[i].equals("-iterations") && i + 1 < args.length)
+                iterations = Integer.parseInt(args[++i]);
+            else if(args[i].equals("-calibrate") && i + 1 < args.length)
+                calibration = new File(args[++i]);
+            else if(args[i].equals("-allocation-budget") && i + 1 < args.length)
+                allocationBudget = Long.parseLong(args[++i]);
+            else if(args[i].equals("-allocation"))
+                allocationOnly = true;
+            else
+                files.add(new File(args[i]));
+        }
+        
+        Benchmark benchmark = new Benchmark(iterations, threshold);
+        benchmark.setAllocationBudget(allocationBudget);
+        benchmark.addSyntheticInputs();
+        benchmark.addFixtures(golden.getAbsoluteFile().getParentFile());
+        for(File file : files)
+            benchmark.addInput(file);
+        
+        // a quick test of the allocation budget alone
+        if(allocationOnly)
+        {
+            if(!benchmark.checkAllocation())
+            {
+                System.out.println("Allocation test FAILED");
+                System.exit(1);
+            }
+            
+            System.out.println("Allocation test passed");
+            return;
+        }
+        
+        List<Result> results = benchmark.run();
+        
+        if(calibration != null)
+        {
+            CostModel model = calibration.exists() ? CostModel.loadModel(calibration) : new CostModel();
+            benchmark.calibrate(results, model);
+            model.saveModel(calibration);
+            System.out.println("Updated " + calibration);
+        }
+        
+        if(update)
+        {
+            writeGolden(results, golden);
+            System.out.println("Updated " + golden);
+            
+            if(baseline != null)
+            {
+                writeBaseline(results, baseline);
+                System.out.println("Updated " + baseline);
+            }
+        }
+        else if(!benchmark.compare(results, golden, baseline))
+        {
+            System.out.println("Benchmark FAILED");
+            System.exit(1);
+        }
+        else
+            System.out.println("Benchmark passed");
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import rakama.sc2mc.canvas.Canvas;
+import rakama.worldtools.data.Biome;
+import rakama.worldtools.data.Block;
+
+public class HashingCanvas implements Canvas
+{
+    protected static final int section_count = 16;
+    protected static final long fnv_offset = 0xcbf29ce484222325L;
+    protected static final long fnv_prime = 0x100000001b3L;
+    
+    protected Map<Long, Chunk> chunks;
+    protected Map<Long, Long> hashes;
+    protected List<Biome> biomeIDs;
+    protected Chunk lastChunk;
+    
+    public HashingCanvas()
+    {
+        chunks = new HashMap<Long, Chunk>();
+        hashes = new TreeMap<Long, Long>();
+        biomeIDs = new ArrayList<Biome>();
+    }
+
+    public void setBlock(int x, int y, int z, Block block)
+    {
+        if(y != (y & 0xFF))
+            return;
+        
+        Chunk chunk = getChunk(x >> 4, z >> 4, true);        
+        Block[] section = chunk.sections[y >> 4];        
+        if(section == null)
+            section = chunk.sections[y >> 4] = new Block[4096];
+        
+        section[toIndex(x, y, z)] = block;
+    }
+
+    public Block getBlock(int x, int y, int z)
+    {
+        if(y != (y & 0xFF))
+            return Block.AIR;
+        
+        Chunk chunk = getChunk(x >> 4, z >> 4, false);
+        if(chunk == null || chunk.sections[y >> 4] == null)
+            return Block.AIR;
+        
+        Block block = chunk.sections[y >> 4][toIndex(x, y, z)];
+        return block == null ? Block.AIR : block;
+    }
+
+    public void setBiome(int x, int z, Biome biome)
+    {
+        int id = biomeIDs.indexOf(biome);
+        if(id < 0)
+        {
+            id = biomeIDs.size();
+            biomeIDs.add(biome);
+        }
+        
+        getChunk(x >> 4, z >> 4, true).biomes[(x & 0xF) | ((z & 0xF) << 4)] = (byte)(id + 1);
+    }
+    
+    public void lockChunk(int chunkX, int chunkZ)
+    {
+    }
+    
+    public void unlockChunk(int chunkX, int chunkZ)
+    {
+    }
+    
+    public void finishChunksBefore(int z)
+    {
+        lastChunk = null;
+        
+        Iterator<Map.Entry<Long, Chunk>> iter = chunks.entrySet().iterator();
+        while(iter.hasNext())
+        {
+            Map.Entry<Long, Chunk> entry = iter.next();
+            if((entry.getValue().chunkZ + 1) << 4 > z)
+                continue;
+            
+            hashes.put(entry.getKey(), entry.getValue().getHash());
+            iter.remove();
+        }
+    }
+    
+    public void finishAll()
+    {
+        lastChunk = null;
+        
+        for(Map.Entry<Long, Chunk> entry : chunks.entrySet())
+            hashes.put(entry.getKey(), entry.getValue().getHash());
+        
+        chunks.clear();
+    }
+    
+    public Map<Long, Long> getHashes()
+    {
+        return hashes;
+    }
+    
+    protected Chunk getChunk(int chunkX, int chunkZ, boolean create)
+    {
+        // writes come a chunk at a time, so skip the boxed lookup while they stay in one
+        if(lastChunk != null && lastChunk.chunkX == chunkX && lastChunk.chunkZ == chunkZ)
+            return lastChunk;
+        
+        Long key = toKey(chunkX, chunkZ);
+        Chunk chunk = chunks.get(key);
+        
+        if(chunk == null && create)
+        {
+            if(hashes.containsKey(key))
+                throw new IllegalStateException("Chunk (" + chunkX + ", " + chunkZ + ") was modified after being hashed");
+            
+            chunk = new Chunk(chunkX, chunkZ);
+            chunks.put(key, chunk);
+        }
+        
+        if(chunk != null)
+            lastChunk = chunk;
+        
+        return chunk;
+    }
+    
+    public static long toKey(int chunkX, int chunkZ)
+    {
+        return ((long)chunkZ << 32) | (chunkX & 0xFFFFFFFFL);
+    }
+    
+    public static int toChunkX(long key)
+    {
+        return (int)key;
+    }
+    
+    public static int toChunkZ(long key)
+    {
+        return (int)(key >> 32);
+    }
+    
+    protected static int toIndex(int x, int y, int z)
+    {
+        return (x & 0xF) | ((z & 0xF) << 4) | ((y & 0xF) << 8);
+    }
+    
+    protected static class Chunk
+    {
+        final int chunkX, chunkZ;
+        final Block[][] sections;
+        final byte[] biomes;
+        
+        Chunk(int chunkX, int chunkZ)
+        {
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+            this.sections = new Block[section_count][];
+            this.biomes = new byte[256];
+        }
+        
+        long getHash()
+        {
+            long hash = fnv_offset;
+            
+            for(int i=0; i<sections.length; i++)
+            {
+                // sections that only hold air hash the same as missing ones
+                if(isEmpty(sections[i]))
+                    continue;
+                
+                hash = (hash ^ i) * fnv_prime;
+                
+                for(Block block : sections[i])
+                {
+                    int val = toValue(block);
+                    hash = (hash ^ (val & 0xFF)) * fnv_prime;
+                    hash = (hash ^ (val >>> 8)) * fnv_prime;
+                }
+            }
+            
+            for(byte biome : biomes)
+                hash = (hash ^ (biome & 0xFF)) * fnv_prime;
+            
+            return hash;
+        }
+        
+        static boolean isEmpty(Block[] section)
+        {
+            if(section == null)
+                return true;
+            
+            for(Block block : section)
+                if(toValue(block) != 0)
+                    return false;
+            
+            return true;
+        }
+        
+        static int toValue(Block block)
+        {
+            if(block == null)
+                return 0;
+            
+            return (block.getID() << 4) | (block.getData() & 0xF);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.canvas;
+
+import rakama.worldtools.data.Biome;
+import rakama.worldtools.data.Block;
+
+public interface Canvas
+{
+    public void setBlock(int x, int y, int z, Block block);
+    
+    public Block getBlock(int x, int y, int z);
+    
+    public void setBiome(int x, int z, Biome biome);
+    
+    // a thread that holds a chunk writes it without any further locking, 
+    // canvases that are never shared between threads can ignore this
+    public void lockChunk(int chunkX, int chunkZ);
+    
+    public void unlockChunk(int chunkX, int chunkZ);
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.canvas;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import rakama.worldtools.data.Biome;
+import rakama.worldtools.data.Block;
+
+public class MappedCanvas implements Canvas
+{
+    protected static final int magic = 0x5343324D;
+    protected static final int format = 4;
+    protected static final int header_size = 64;
+    
+    // biomes are stored by the name of their constant, so they survive a reopen
+    protected static final int biome_slots = 255;
+    protected static final int biome_name_size = 32;
+    protected static final int biome_table_size = biome_slots * biome_name_size;
+    protected static final int section_count = 16;
+    
+    // a page holds a section's packed blocks
+    protected static final int page_size = 4096 * 2;
+    protected static final int segment_bits = 14;
+    protected static final int segment_pages = 1 << segment_bits;
+    protected static final int region_size = 32;
+    
+    protected RandomAccessFile file;
+    protected FileChannel channel;
+    protected MappedByteBuffer header, biomeTable, directory, biomes;
+    protected AtomicReferenceArray<MappedByteBuffer> segments;
+    protected long pageStart;
+    protected int pageCount;
+    
+    protected int chunkXMin, chunkZMin, chunksX, chunksZ;
+    protected boolean reopened;
+    protected List<Biome> biomeIDs;
+    
+    // blocks by packed value, filled on first use
+    protected Block[] blockCache;
+    
+    public MappedCanvas(File path, int chunkXMin, int chunkZMin, int chunksX, int chunksZ) throws IOException
+    {
+        this.chunkXMin = chunkXMin;
+        this.chunkZMin = chunkZMin;
+        this.chunksX = chunksX;
+        this.chunksZ = chunksZ;
+        this.biomeIDs = new ArrayList<Biome>();
+        this.blockCache = new Block[1 << 16];
+        
+        long directorySize = (long)chunksX * chunksZ * section_count * 4;
+        long biomeSize = (long)chunksX * chunksZ * 256;
+        if(directorySize > Integer.MAX_VALUE || biomeSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Canvas is too large (" + chunksX + " x " + chunksZ + " chunks)");
+
+        this.file = new RandomAccessFile(path, "rw");
+        this.channel = file.getChannel();
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, header_size);
+        this.biomeTable = channel.map(FileChannel.MapMode.READ_WRITE, header_size, biome_table_size);
+        
+        long directoryStart = header_size + biome_table_size;
+        this.directory = channel.map(FileChannel.MapMode.READ_WRITE, directoryStart, directorySize);
+        this.biomes = channel.map(FileChannel.MapMode.READ_WRITE, directoryStart + directorySize, biomeSize);
+        this.pageStart = directoryStart + directorySize + biomeSize;
+        this.segments = new AtomicReferenceArray<MappedByteBuffer>(
+                (int)(((long)chunksX * chunksZ * section_count + segment_pages - 1) >> segment_bits));
+        
+        if(header.getInt(0) == magic)
+        {
+            // reopen an existing scratch volume
+            if(header.getInt(24) != format)
+                throw new IOException("Scratch volume " + path + " has a different format");
+            
+            if(header.getInt(4) != chunkXMin || header.getInt(8) != chunkZMin 
+                    || header.getInt(12) != chunksX || header.getInt(16) != chunksZ)
+                throw new IOException("Scratch volume " + path + " has different bounds");
+            
+            // pages allocated after the last flush may still be referenced
+            pageCount = header.getInt(20);
+            for(int i=0; i<directorySize; i+=4)
+                pageCount = Math.max(pageCount, directory.getInt(i));
+            
+            loadBiomes(path);
+            reopened = true;
+        }
+        else
+        {
+            header.putInt(0, magic);
+            header.putInt(4, chunkXMin);
+            header.putInt(8, chunkZMin);
+            header.putInt(12, chunksX);
+            header.putInt(16, chunksZ);
+            header.putInt(20, 0);
+            header.putInt(24, format);
+        }
+    }
+
+    public static MappedCanvas createCanvas(File path, int xMin, int zMin, int width, int depth) throws IOException
+    {
+        int chunkXMin = xMin >> 4;
+        int chunkZMin = zMin >> 4;
+        int chunksX = ((xMin + width - 1) >> 4) - chunkXMin + 1;
+        int chunksZ = ((zMin + depth - 1) >> 4) - chunkZMin + 1;
+        return new MappedCanvas(path, chunkXMin, chunkZMin, chunksX, chunksZ);
+    }
+    
+    public void setBlock(int x, int y, int z, Block block)
+    {
+        if(y != (y & 0xFF))
+            return;
+
+        int val = block == null ? 0 : (block.getID() << 4) | (block.getData() & 0xF);
+        int page = getPage(x, y, z, val != 0);        
+        if(page < 0)
+            return;
+        
+        getSegment(page).putShort(toOffset(page, x, y, z), (short)val);
+    }
+
+    public Block getBlock(int x, int y, int z)
+    {
+        int val = getValue(x, y, z);
+        return toBlock(val);
+    }
+
+    protected Block toBlock(int val)
+    {
+        if(val == 0)
+            return Block.AIR;
+        
+        // blocks are immutable, so a racing fill stores the same block twice at worst
+        Block block = blockCache[val];
+        if(block == null)
+            block = blockCache[val] = Block.getBlock(val >> 4, val & 0xF);
+        
+        return block;
+    }
+    
+    public int getValue(int x, int y, int z)
+    {
+        if(y != (y & 0xFF))
+            return 0;
+
+        int page = getPage(x, y, z, false);
+        if(page < 0)
+            return 0;
+        
+        return getSegment(page).getShort(toOffset(page, x, y, z)) & 0xFFFF;
+    }
+    
+    public boolean isEmpty(int chunkX, int section, int chunkZ)
+    {
+        return directory.getInt(getDirectoryIndex(chunkX, section, chunkZ)) == 0;
+    }
+
+    // copies a section's packed blocks in y, z, x order, false if the section was never written
+    public boolean readSection(int chunkX, int section, int chunkZ, short[] values)
+    {
+        int page = directory.getInt(getDirectoryIndex(chunkX, section, chunkZ)) - 1;
+        if(page < 0)
+            return false;
+        
+        MappedByteBuffer segment = getSegment(page);
+        int offset = (page & (segment_pages - 1)) * page_size;
+        for(int i=0; i<4096; i++)
+            values[i] = segment.getShort(offset + i * 2);
+        
+        return true;
+    }
+
+    public void setBiome(int x, int z, Biome biome)
+    {
+        biomes.put(getColumnIndex(x, z), (byte)(getBiomeID(biome) + 1));
+    }
+    
+    public Biome getBiome(int x, int z)
+    {
+        int id = biomes.get(getColumnIndex(x, z)) & 0xFF;
+        
+        synchronized(biomeIDs)
+        {
+            return id == 0 || id > biomeIDs.size() ? null : biomeIDs.get(id - 1);
+        }
+    }
+    
+    // different chunks never share a page, so chunks can be written concurrently as they are
+    public void lockChunk(int chunkX, int chunkZ)
+    {
+    }
+    
+    public void unlockChunk(int chunkX, int chunkZ)
+    {
+    }
+    
+    protected int getBiomeID(Biome biome)
+    {
+        synchronized(biomeIDs)
+        {
+            int id = biomeIDs.indexOf(biome);
+            if(id < 0)
+            {
+                if(biomeIDs.size() >= 255)
+                    throw new IllegalStateException("Too many distinct biomes");
+                
+                id = biomeIDs.size();
+                putBiomeName(id, getBiomeName(biome));
+                biomeIDs.add(biome);
+            }
+            
+            return id;
+        }
+    }
+    
+    protected void loadBiomes(File path) throws IOException
+    {
+        for(int id=0; id<biome_slots; id++)
+        {
+            int offset = id * biome_name_size;
+            int length = biomeTable.get(offset);
+            if(length == 0)
+                break;
+            
+            byte[] name = new byte[length];
+            for(int i=0; i<length; i++)
+                name[i] = biomeTable.get(offset + 1 + i);
+            
+            Biome biome = toBiome(new String(name, "US-ASCII"));
+            if(biome == null)
+                throw new IOException("Scratch volume " + path + " has unknown biome " + new String(name, "US-ASCII"));
+            
+            biomeIDs.add(biome);
+        }
+    }
+    
+    protected void putBiomeName(int id, String name)
+    {
+        if(name.length() >= biome_name_size)
+            throw new IllegalArgumentException("Biome name " + name + " is too long");
+        
+        int offset = id * biome_name_size;
+        for(int i=0; i<name.length(); i++)
+            biomeTable.put(offset + 1 + i, (byte)name.charAt(i));
+        
+        biomeTable.put(offset, (byte)name.length());
+    }
+    
+    public static String getBiomeName(Biome biome)
+    {
+        try
+        {
+            for(Field field : Biome.class.getFields())
+                if(Modifier.isStatic(field.getModifiers()) && field.get(null) == biome)
+                    return field.getName();
+        }
+        catch(IllegalAccessException e)
+        {
+            // fall through
+        }
+        
+        throw new IllegalArgumentException("Biome " + biome + " has no constant name");
+    }
+    
+    public static Biome toBiome(String name)
+    {
+        try
+        {
+            Object biome = Biome.class.getField(name).get(null);
+            return biome instanceof Biome ? (Biome)biome : null;
+        }
+        catch(NoSuchFieldException e)
+        {
+            return null;
+        }
+        catch(IllegalAccessException e)
+        {
+            return null;
+        }
+    }
+    
+    // false for a volume that was created rather than reopened
+    public boolean isReopened()
+    {
+        return reopened;
+    }
+    
+    public int getChunkXMin()
+    {
+        return chunkXMin;
+    }
+    
+    public int getChunkZMin()
+    {
+        return chunkZMin;
+    }
+    
+    public int getChunksX()
+    {
+        return chunksX;
+    }
+    
+    public int getChunksZ()
+    {
+        return chunksZ;
+    }
+    
+    public boolean containsChunk(int chunkX, int chunkZ)
+    {
+        return chunkX >= chunkXMin && chunkX < chunkXMin + chunksX && chunkZ >= chunkZMin && chunkZ < chunkZMin + chunksZ;
+    }
+    
+    public void writeTo(Canvas target)
+    {
+        int regionXMin = chunkXMin >> 5;
+        int regionZMin = chunkZMin >> 5;
+        int regionXMax = (chunkXMin + chunksX - 1) >> 5;
+        int regionZMax = (chunkZMin + chunksZ - 1) >> 5;
+        
+        // visit chunks region by region so each region file is written once
+        for(int rz=regionZMin; rz<=regionZMax; rz++)
+            for(int rx=regionXMin; rx<=regionXMax; rx++)
+                writeRegion(target, rx, rz);
+    }
+    
+    public void writeRegion(Canvas target, int regionX, int regionZ)
+    {
+        int czStart = Math.max(chunkZMin, regionZ * region_size);
+        int czEnd = Math.min(chunkZMin + chunksZ, (regionZ + 1) * region_size);
+        int cxStart = Math.max(chunkXMin, regionX * region_size);
+        int cxEnd = Math.min(chunkXMin + chunksX, (regionX + 1) * region_size);
+        
+        for(int cz=czStart; cz<czEnd; cz++)
+            for(int cx=cxStart; cx<cxEnd; cx++)
+                writeChunk(target, cx, cz);
+    }
+    
+    public void writeChunk(Canvas target, int chunkX, int chunkZ)
+    {
+        checkBounds(chunkX, chunkZ);
+        
+        int cx = chunkX - chunkXMin;
+        int cz = chunkZ - chunkZMin;
+        int x0 = chunkX << 4;
+        int z0 = chunkZ << 4;
+        
+        for(int section=0; section<section_count; section++)
+        {
+            int page = directory.getInt(((cz * chunksX + cx) * section_count + section) * 4) - 1;
+            if(page < 0)
+                continue;
+            
+            MappedByteBuffer segment = getSegment(page);
+            int offset = (page & (segment_pages - 1)) * page_size;
+            
+            for(int i=0; i<4096; i++)
+            {
+                int val = segment.getShort(offset + i * 2) & 0xFFFF;
+                if(val != 0)
+                    target.setBlock(x0 + (i & 0xF), (section << 4) | (i >> 8), z0 + ((i >> 4) & 0xF), 
+                            toBlock(val));
+            }
+        }
+        
+        for(int i=0; i<256; i++)
+        {
+            Biome biome = getBiome(x0 + (i & 0xF), z0 + (i >> 4));
+            if(biome != null)
+                target.setBiome(x0 + (i & 0xF), z0 + (i >> 4), biome);
+        }
+    }
+    
+    public synchronized void flush()
+    {
+        header.putInt(20, pageCount);
+        header.force();
+        biomeTable.force();
+        directory.force();
+        biomes.force();
+        
+        for(int i=0; i<segments.length(); i++)
+            if(segments.get(i) != null)
+                segments.get(i).force();
+    }
+    
+    public void close() throws IOException
+    {
+        flush();
+        channel.close();
+        file.close();
+    }
+    
+    public synchronized int getPageCount()
+    {
+        return pageCount;
+    }
+    
+    protected int getPage(int x, int y, int z, boolean create)
+    {
+        int index = getDirectoryIndex(x >> 4, y >> 4, z >> 4);
+        int page = directory.getInt(index) - 1;
+        
+        if(page < 0 && create)
+            page = allocatePage(index);
+        
+        return page;
+    }
+    
+    protected synchronized int allocatePage(int index)
+    {
+        // another thread may have allocated this page in the meantime
+        int page = directory.getInt(index) - 1;        
+        if(page < 0)
+        {
+            page = pageCount++;
+            directory.putInt(index, page + 1);
+        }
+        
+        return page;
+    }
+    
+    protected MappedByteBuffer getSegment(int page)
+    {
+        int index = page >> segment_bits;
+        MappedByteBuffer segment = segments.get(index);
+        
+        if(segment == null)
+            segment = mapSegment(index);
+        
+        return segment;
+    }
+    
+    protected synchronized MappedByteBuffer mapSegment(int index)
+    {
+        MappedByteBuffer segment = segments.get(index);
+        if(segment != null)
+            return segment;
+        
+        try
+        {
+            long start = pageStart + (long)index * segment_pages * page_size;
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, start, (long)segment_pages * page_size);
+            segments.set(index, segment);
+            return segment;
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException("Unable to map scratch volume segment " + index, e);
+        }
+    }
+    
+    protected int getDirectoryIndex(int chunkX, int section, int chunkZ)
+    {
+        checkBounds(chunkX, chunkZ);
+        return (((chunkZ - chunkZMin) * chunksX + (chunkX - chunkXMin)) * section_count + section) * 4;
+    }
+    
+    protected int getColumnIndex(int x, int z)
+    {
+        checkBounds(x >> 4, z >> 4);
+        return ((((z >> 4) - chunkZMin) * chunksX + ((x >> 4) - chunkXMin)) << 8) | ((z & 0xF) << 4) | (x & 0xF);
+    }
+    
+    protected static int toOffset(int page, int x, int y, int z)
+    {
+        return ((page & (segment_pages - 1)) * page_size) + (((x & 0xF) | ((z & 0xF) << 4) | ((y & 0xF) << 8)) << 1);
+    }
+    
+    protected void checkBounds(int chunkX, int chunkZ)
+    {
+        if(chunkX < chunkXMin || chunkX >= chunkXMin + chunksX || chunkZ < chunkZMin || chunkZ >= chunkZMin + chunksZ)
+            throw new IndexOutOfBoundsException("chunk (" + chunkX + ", " + chunkZ + ")");
+    }
+}
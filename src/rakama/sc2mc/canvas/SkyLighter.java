@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.canvas;
+
+import java.util.Arrays;
+
+import rakama.worldtools.data.Block;
+
+// computes a chunk's height map and sky light one column at a time, the way minecraft 
+// lights a chunk it has just generated. Light falls straight down and fades by the 
+// opacity of every block it passes, so a column is only read from its top section 
+// down to the first opaque block, which on open ground is the terrain surface.
+public class SkyLighter
+{
+    public static final int max_light = 15;
+    
+    protected static final int section_count = 16;
+    protected static final int light_bytes = 4096 / 2;
+    
+    protected MappedCanvas canvas;
+    protected byte[] opacity;
+    
+    // packed blocks of the last chunk's sections in y, z, x order, up to the top one
+    protected short[][] values;
+    
+    // results for the last chunk, light is packed two blocks to a byte in y, z, x order
+    protected int[] heightMap;
+    protected byte[][] light;
+    protected int topSection;
+    
+    public SkyLighter(MappedCanvas canvas)
+    {
+        this.canvas = canvas;
+        this.opacity = new byte[1 << 16];
+        Arrays.fill(opacity, (byte)-1);
+        
+        this.values = new short[section_count][4096];
+        this.heightMap = new int[256];
+        this.light = new byte[section_count][light_bytes];
+    }
+    
+    public void lightChunk(int chunkX, int chunkZ)
+    {
+        topSection = -1;
+        for(int section=0; section<section_count; section++)
+            if(!canvas.isEmpty(chunkX, section, chunkZ))
+                topSection = section;
+        
+        Arrays.fill(heightMap, 0);
+        for(int section=0; section<=topSection; section++)
+        {
+            Arrays.fill(light[section], (byte)0);
+            if(!canvas.readSection(chunkX, section, chunkZ, values[section]))
+                Arrays.fill(values[section], (short)0);
+        }
+        
+        for(int i=0; i<256; i++)
+        {
+            int level = max_light;
+            
+            for(int y=(topSection << 4) + 15; y>=0 && level>0; y--)
+            {
+                int op = getOpacity(values[y >> 4][i | ((y & 0xF) << 8)] & 0xFFFF);
+                if(op > 0 && heightMap[i] == 0)
+                    heightMap[i] = y + 1;
+                
+                level -= op;
+                if(level > 0)
+                {
+                    int index = (i | ((y & 0xF) << 8)) >> 1;
+                    if((i & 1) == 0)
+                        light[y >> 4][index] |= (byte)level;
+                    else
+                        light[y >> 4][index] |= (byte)(level << 4);
+                }
+            }
+        }
+    }
+    
+    public int[] getHeightMap()
+    {
+        return heightMap;
+    }
+    
+    // sections above the top one hold nothing and are fully lit
+    public int getTopSection()
+    {
+        return topSection;
+    }
+    
+    public short[] getValues(int section)
+    {
+        return values[section];
+    }
+    
+    public byte[] getSkyLight(int section)
+    {
+        return light[section];
+    }
+    
+    protected int getOpacity(int value)
+    {
+        int op = opacity[value];
+        if(op < 0)
+            op = opacity[value] = (byte)getOpacity(canvas.toBlock(value));
+        
+        return op;
+    }
+    
+    public static int getOpacity(Block block)
+    {
+        if(block == null)
+            return 0;
+        
+        switch(block.getID())
+        {
+        case 8: case 9: case 79:
+            return 3;
+        case 18:
+            return 1;
+        default:
+            return block.isOpaque() ? max_light : 0;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.canvas;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import rakama.worldtools.data.Biome;
+import rakama.worldtools.data.Block;
+
+public class StripedCanvas implements Canvas
+{
+    protected Canvas canvas;
+    protected ReentrantLock[] stripes;
+    protected int mask;
+    
+    public StripedCanvas(Canvas canvas)
+    {
+        this(canvas, Runtime.getRuntime().availableProcessors() * 8);
+    }
+    
+    // every write takes its chunk's stripe, so the wrapped canvas must allow 
+    // concurrent access to different chunks, otherwise use a single stripe
+    public StripedCanvas(Canvas canvas, int stripeCount)
+    {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        if(stripeCount == 1)
+            size = 1;
+        
+        this.canvas = canvas;
+        this.stripes = new ReentrantLock[size];
+        this.mask = size - 1;
+        
+        for(int i=0; i<size; i++)
+            stripes[i] = new ReentrantLock();
+    }
+    
+    public Canvas getCanvas()
+    {
+        return canvas;
+    }
+    
+    // writes from the thread holding a chunk's stripe skip the lock
+    public void lockChunk(int chunkX, int chunkZ)
+    {
+        getStripe(chunkX, chunkZ).lock();
+    }
+    
+    public void unlockChunk(int chunkX, int chunkZ)
+    {
+        getStripe(chunkX, chunkZ).unlock();
+    }
+
+    public void setBlock(int x, int y, int z, Block block)
+    {
+        ReentrantLock stripe = getStripe(x >> 4, z >> 4);
+        if(stripe.isHeldByCurrentThread())
+        {
+            canvas.setBlock(x, y, z, block);
+            return;
+        }
+        
+        stripe.lock();
+        
+        try
+        {
+            canvas.setBlock(x, y, z, block);
+        }
+        finally
+        {
+            stripe.unlock();
+        }
+    }
+
+    public Block getBlock(int x, int y, int z)
+    {
+        ReentrantLock stripe = getStripe(x >> 4, z >> 4);
+        stripe.lock();
+        
+        try
+        {
+            return canvas.getBlock(x, y, z);
+        }
+        finally
+        {
+            stripe.unlock();
+        }
+    }
+
+    public void setBiome(int x, int z, Biome biome)
+    {
+        ReentrantLock stripe = getStripe(x >> 4, z >> 4);
+        if(stripe.isHeldByCurrentThread())
+        {
+            canvas.setBiome(x, z, biome);
+            return;
+        }
+        
+        stripe.lock();
+        
+        try
+        {
+            canvas.setBiome(x, z, biome);
+        }
+        finally
+        {
+            stripe.unlock();
+        }
+    }
+    
+    protected ReentrantLock getStripe(int chunkX, int chunkZ)
+    {
+        int hash = chunkX * 0x9E3779B1 ^ chunkZ * 0x85EBCA6B;
+        hash ^= hash >>> 16;
+        return stripes[hash & mask];
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.canvas;
+
+import java.util.Arrays;
+
+import rakama.worldtools.data.Biome;
+import rakama.worldtools.data.Block;
+
+public class TileBuffer implements Canvas
+{
+    public static final int size = 16;
+    public static final int max_height = 256;
+    
+    protected static final int section_count = max_height / size;
+    protected static final int section_volume = size * size * size;
+    
+    protected Canvas target;
+    protected int xStart, zStart;
+
+    // a cell is only valid when its stamp matches the current generation
+    protected Block[] blocks;
+    protected Biome[] biomes;
+    protected int[] blockStamps, biomeStamps, sectionStamps;
+    protected int generation;
+    
+    protected long blockWrites, canvasWrites;
+    
+    public TileBuffer(Canvas target)
+    {
+        this.target = target;
+        
+        this.blocks = new Block[size * size * max_height];
+        this.biomes = new Biome[size * size];
+        this.blockStamps = new int[blocks.length];
+        this.biomeStamps = new int[biomes.length];
+        this.sectionStamps = new int[section_count];
+        this.generation = 1;
+    }
+    
+    public Canvas getTarget()
+    {
+        return target;
+    }
+    
+    public void begin(int xStart, int zStart)
+    {
+        this.xStart = xStart;
+        this.zStart = zStart;
+        
+        if(++generation == Integer.MAX_VALUE)
+        {
+            Arrays.fill(blockStamps, 0);
+            Arrays.fill(biomeStamps, 0);
+            Arrays.fill(sectionStamps, 0);
+            generation = 1;
+        }
+    }
+
+    public void setBlock(int x, int y, int z, Block block)
+    {
+        blockWrites++;
+        
+        if(!contains(x, y, z))
+        {
+            canvasWrites++;
+            target.setBlock(x, y, z, block);
+            return;
+        }
+        
+        int index = toIndex(x - xStart, y, z - zStart);
+        blocks[index] = block;
+        blockStamps[index] = generation;
+        sectionStamps[y >> 4] = generation;
+    }
+
+    public Block getBlock(int x, int y, int z)
+    {
+        if(contains(x, y, z))
+        {
+            int index = toIndex(x - xStart, y, z - zStart);
+            if(blockStamps[index] == generation)
+                return blocks[index];
+        }
+        
+        return target.getBlock(x, y, z);
+    }
+
+    public void setBiome(int x, int z, Biome biome)
+    {
+        int xr = x - xStart;
+        int zr = z - zStart;
+        
+        if(xr != (xr & 0xF) || zr != (zr & 0xF))
+        {
+            target.setBiome(x, z, biome);
+            return;
+        }
+        
+        int index = xr | (zr << 4);
+        biomes[index] = biome;
+        biomeStamps[index] = generation;
+    }
+    
+    public void lockChunk(int chunkX, int chunkZ)
+    {
+        target.lockChunk(chunkX, chunkZ);
+    }
+    
+    public void unlockChunk(int chunkX, int chunkZ)
+    {
+        target.unlockChunk(chunkX, chunkZ);
+    }
+    
+    public void flush()
+    {
+        // a chunk aligned buffer holds its chunk for the whole flush, so the 
+        // target doesn't lock every block on its own
+        boolean aligned = (xStart & 0xF) == 0 && (zStart & 0xF) == 0;
+        if(aligned)
+            target.lockChunk(xStart >> 4, zStart >> 4);
+        
+        try
+        {
+            flushBlocks(target);
+        }
+        finally
+        {
+            if(aligned)
+                target.unlockChunk(xStart >> 4, zStart >> 4);
+        }
+        
+        // invalidate the flushed contents
+        begin(xStart, zStart);
+    }
+    
+    protected void flushBlocks(Canvas out)
+    {
+        // write sections bottom-up, keeping only the last value of each block
+        for(int section=0; section<section_count; section++)
+        {
+            if(sectionStamps[section] != generation)
+                continue;
+            
+            int start = section * section_volume;
+            int end = start + section_volume;
+            
+            for(int index=start; index<end; index++)
+            {
+                if(blockStamps[index] != generation)
+                    continue;
+                
+                out.setBlock(xStart + (index & 0xF), index >> 8, zStart + ((index >> 4) & 0xF), blocks[index]);
+                canvasWrites++;
+            }
+        }
+        
+        for(int index=0; index<biomes.length; index++)
+            if(biomeStamps[index] == generation)
+                out.setBiome(xStart + (index & 0xF), zStart + (index >> 4), biomes[index]);
+    }
+    
+    public long getBlockWrites()
+    {
+        return blockWrites;
+    }
+    
+    public long getCanvasWrites()
+    {
+        return canvasWrites;
+    }
+    
+    public long getOverdraw()
+    {
+        return blockWrites - canvasWrites;
+    }
+    
+    protected boolean contains(int x, int y, int z)
+    {
+        int xr = x - xStart;
+        int zr = z - zStart;
+        return xr == (xr & 0xF) && zr == (zr & 0xF) && y == (y & 0xFF);
+    }
+    
+    protected static int toIndex(int x, int y, int z)
+    {
+        return x | (z << 4) | (y << 8);
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.estimate;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+
+import rakama.sc2mc.Converter;
+import rakama.sc2mc.map.SC2Map;
+
+public class CostModel
+{
+    // block writes per unit of each statistic, as rendered by the converter
+    protected static final int writes_per_column_level = 16;
+    protected static final int tile_area = 256;
+    protected static final int writes_per_waterfall = 256 * 17;
+    protected static final int writes_per_tree = 45;
+    
+    protected double writeScale;
+    protected double nanosPerWrite, nanosPerTile;
+    protected double heapBase, heapPerTile;
+    protected double bytesPerChunk, bytesPerSection;
+    
+    public CostModel()
+    {
+        // fitted to the synthetic benchmark maps, region sizes are a rough guess
+        this.writeScale = 1;
+        this.nanosPerWrite = 34;
+        this.nanosPerTile = 0;
+        this.heapBase = 70 << 20;
+        this.heapPerTile = 1900;
+        this.bytesPerChunk = 1024;
+        this.bytesPerSection = 1536;
+    }
+    
+    public static CostModel loadModel(File file) throws IOException
+    {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(file);
+        
+        try
+        {
+            props.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+        
+        CostModel model = new CostModel();
+        model.writeScale = getProperty(props, "write_scale", model.writeScale);
+        model.nanosPerWrite = getProperty(props, "nanos_per_write", model.nanosPerWrite);
+        model.nanosPerTile = getProperty(props, "nanos_per_tile", model.nanosPerTile);
+        model.heapBase = getProperty(props, "heap_base", model.heapBase);
+        model.heapPerTile = getProperty(props, "heap_per_tile", model.heapPerTile);
+        model.bytesPerChunk = getProperty(props, "bytes_per_chunk", model.bytesPerChunk);
+        model.bytesPerSection = getProperty(props, "bytes_per_section", model.bytesPerSection);
+        return model;
+    }
+    
+    public void saveModel(File file) throws IOException
+    {
+        Properties props = new Properties();
+        props.setProperty("write_scale", Double.toString(writeScale));
+        props.setProperty("nanos_per_write", Double.toString(nanosPerWrite));
+        props.setProperty("nanos_per_tile", Double.toString(nanosPerTile));
+        props.setProperty("heap_base", Double.toString(heapBase));
+        props.setProperty("heap_per_tile", Double.toString(heapPerTile));
+        props.setProperty("bytes_per_chunk", Double.toString(bytesPerChunk));
+        props.setProperty("bytes_per_section", Double.toString(bytesPerSection));
+        
+        OutputStream out = new FileOutputStream(file);
+        
+        try
+        {
+            props.store(out, "SC2MC cost model");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    public Estimate estimate(MapStatistics stats)
+    {
+        Estimate estimate = new Estimate();
+        estimate.blockWrites = (long)(getRenderedWrites(stats) * writeScale);
+        estimate.nanos = (long)(nanosPerWrite * estimate.blockWrites + nanosPerTile * stats.getTiles());
+        estimate.peakHeap = (long)(heapBase + heapPerTile * stats.getTiles());
+        estimate.outputBytes = (long)(bytesPerChunk * stats.getTiles() + bytesPerSection * stats.getSectionLevels());
+        return estimate;
+    }
+    
+    protected double getRenderedWrites(MapStatistics stats)
+    {
+        double writes = 0;
+        
+        // bedrock, ground and water columns
+        writes += (double)tile_area * stats.getTiles();
+        writes += (double)tile_area * writes_per_column_level * stats.getTerrainLevels();
+        writes += (double)tile_area * writes_per_column_level * stats.getWaterLevels();
+        
+        // everything built on top
+        writes += (double)writes_per_waterfall * stats.getWaterfallTiles();
+        writes += (double)tile_area * (stats.getRoadTiles() + stats.getHighwayTiles());
+        writes += (double)writes_per_tree * stats.getTrees();
+        writes += stats.getPassageWrites();
+        writes += Converter.empty_lot_shrub_chance * stats.getEmptyLots();
+        
+        return writes;
+    }
+    
+    public void calibrate(List<MapStatistics> stats, long[] nanos, long[] blockWrites, long[] peakHeap)
+    {
+        int n = stats.size();
+        if(n == 0)
+            return;
+        
+        // scale of the analytic write count, least squares through the origin
+        double num = 0, den = 0;
+        for(int i=0; i<n; i++)
+        {
+            double predicted = getRenderedWrites(stats.get(i));
+            num += predicted * blockWrites[i];
+            den += predicted * predicted;
+        }
+        
+        if(den > 0)
+            writeScale = num / den;
+        
+        // time per write and per tile, least squares through the origin
+        double sww = 0, swt = 0, stt = 0, swy = 0, sty = 0;
+        for(int i=0; i<n; i++)
+        {
+            double w = blockWrites[i];
+            double t = stats.get(i).getTiles();
+            sww += w * w;
+            swt += w * t;
+            stt += t * t;
+            swy += w * nanos[i];
+            sty += t * nanos[i];
+        }
+        
+        double det = sww * stt - swt * swt;
+        double perWrite = det != 0 ? (swy * stt - sty * swt) / det : -1;
+        double perTile = det != 0 ? (sty * sww - swy * swt) / det : -1;
+        
+        // fall back to time per write alone when the fit is degenerate
+        if(perWrite <= 0 || perTile < 0)
+        {
+            perWrite = swy / sww;
+            perTile = 0;
+        }
+        
+        nanosPerWrite = perWrite;
+        nanosPerTile = perTile;
+        
+        // peak heap is a fixed base plus a share per tile
+        double meanTiles = 0, meanHeap = 0;
+        for(int i=0; i<n; i++)
+        {
+            meanTiles += stats.get(i).getTiles() / (double)n;
+            meanHeap += peakHeap[i] / (double)n;
+        }
+        
+        double cov = 0, var = 0;
+        for(int i=0; i<n; i++)
+        {
+            double dt = stats.get(i).getTiles() - meanTiles;
+            cov += dt * (peakHeap[i] - meanHeap);
+            var += dt * dt;
+        }
+        
+        if(var > 0 && cov > 0)
+            heapPerTile = cov / var;
+        
+        heapBase = Math.max(0, meanHeap - heapPerTile * meanTiles);
+    }
+    
+    public void calibrateOutput(MapStatistics stats, long outputBytes)
+    {
+        // a single world only fixes the overall scale of the output size
+        double predicted = bytesPerChunk * stats.getTiles() + bytesPerSection * stats.getSectionLevels();
+        if(predicted <= 0)
+            return;
+        
+        double scale = outputBytes / predicted;
+        bytesPerChunk *= scale;
+        bytesPerSection *= scale;
+    }
+    
+    protected static double getProperty(Properties props, String key, double defaultValue)
+    {
+        String value = props.getProperty(key);
+        return value == null ? defaultValue : Double.parseDouble(value.trim());
+    }
+    
+    protected static long getRegionBytes(File world)
+    {
+        File[] files = new File(world, "region").listFiles();
+        if(files == null)
+            return 0;
+        
+        long bytes = 0;
+        for(File file : files)
+            if(file.getName().endsWith(".mca"))
+                bytes += file.length();
+        
+        return bytes;
+    }
+    
+    protected static SC2Map loadMap(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        
+        try
+        {
+            return SC2Map.loadMap(in);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    public static class Estimate
+    {
+        protected long nanos, blockWrites, peakHeap, outputBytes;
+        
+        protected Estimate()
+        {
+        }
+        
+        public long getNanos()
+        {
+            return nanos;
+        }
+        
+        public long getBlockWrites()
+        {
+            return blockWrites;
+        }
+        
+        public long getPeakHeap()
+        {
+            return peakHeap;
+        }
+        
+        public long getOutputBytes()
+        {
+            return outputBytes;
+        }
+        
+        public String toString()
+        {
+            return (nanos / 1000000) + " ms, " + blockWrites + " blocks, " 
+                    + (peakHeap >> 20) + " MB peak heap, " + (outputBytes >> 20) + " MB of region files";
+        }
+    }
+    
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length < 2)
+        {
+            System.out.println("Usage: CostModel <model.properties> <input.sc2> [input.sc2 ...]");
+            System.out.println("       CostModel <model.properties> -output <input.sc2> <converted world>");
+            return;
+        }
+        
+        File modelFile = new File(args[0]);
+        CostModel model = modelFile.exists() ? loadModel(modelFile) : new CostModel();
+        
+        if(args[1].equals("-output"))
+        {
+            if(args.length < 4)
+                throw new IllegalArgumentException("Missing input or world");
+            
+            // fit the output size to a world that was already converted
+            MapStatistics stats = MapStatistics.gather(loadMap(new File(args[2])));
+            long bytes = getRegionBytes(new File(args[3]));
+            if(bytes == 0)
+                throw new IOException("No region files found in " + args[3]);
+            
+            model.calibrateOutput(stats, bytes);
+            model.saveModel(modelFile);
+            System.out.println("Updated " + modelFile);
+            return;
+        }
+        
+        for(int i=1; i<args.length; i++)
+        {
+            File file = new File(args[i]);
+            System.out.println(file.getName() + ": " + model.estimate(MapStatistics.gather(loadMap(file))));
+        }
+    }
+}
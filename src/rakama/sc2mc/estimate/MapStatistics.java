@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.estimate;
+
+import rakama.sc2mc.Converter;
+import rakama.sc2mc.map.SC2Map;
+import rakama.sc2mc.map.StructureMap;
+import rakama.sc2mc.map.TerrainMap;
+import rakama.sc2mc.map.UndergroundMap;
+
+public class MapStatistics
+{
+    public static final int altitude_levels = 32;
+    
+    protected int width, height;
+    protected int[] terrainHistogram, waterHistogram;
+    protected int floodedTiles, waterfallTiles;
+    protected int trees, emptyLots;
+    protected int roadTiles, highwayTiles, railTiles;
+    protected int undergroundTiles;
+    protected long passageWrites;
+    
+    protected static final int[] network_types = {UndergroundMap.subway, UndergroundMap.pipe, UndergroundMap.tunnel};
+    
+    protected MapStatistics()
+    {
+        this.terrainHistogram = new int[altitude_levels];
+        this.waterHistogram = new int[altitude_levels];
+    }
+    
+    public static MapStatistics gather(SC2Map map)
+    {
+        TerrainMap terrain = map.getTerrainMap();
+        StructureMap struct = map.getStructureMap();
+        UndergroundMap under = map.getUndergroundMap();
+        
+        MapStatistics stats = new MapStatistics();
+        stats.width = terrain.getWidth();
+        stats.height = terrain.getHeight();
+        
+        // one pass over the tiles, no rendering
+        for(int y=0; y<stats.height; y++)
+        {
+            for(int x=0; x<stats.width; x++)
+            {
+                int altitude = Math.min(altitude_levels - 1, terrain.getTerrainAltitude(x, y));
+                stats.terrainHistogram[altitude]++;
+                
+                // water fills any column below the water altitude, flooded or not
+                int water = Math.min(altitude_levels - 1, terrain.getWaterAltitude(x, y));
+                stats.waterHistogram[Math.max(0, water - altitude)]++;
+                
+                if(terrain.isFlooded(x, y))
+                    stats.floodedTiles++;
+                
+                if(terrain.isWaterfall(x, y))
+                    stats.waterfallTiles++;
+                
+                if(struct.isEmptyLot(x, y))
+                    stats.emptyLots++;
+                if(struct.isRoad(x, y))
+                    stats.roadTiles++;
+                if(struct.isHighway(x, y))
+                    stats.highwayTiles++;
+                if(struct.isRail(x, y))
+                    stats.railTiles++;
+                if(under.getUndergroundID(x, y) != 0)
+                    stats.undergroundTiles++;
+                
+                for(int type : network_types)
+                {
+                    if(!under.hasNetwork(type, x, y))
+                        continue;
+                    
+                    int branches = 0;
+                    if(under.hasNetwork(type, x - 1, y))
+                        branches++;
+                    if(under.hasNetwork(type, x + 1, y))
+                        branches++;
+                    if(under.hasNetwork(type, x, y - 1))
+                        branches++;
+                    if(under.hasNetwork(type, x, y + 1))
+                        branches++;
+                    
+                    stats.passageWrites += Converter.getPassageWrites(type, under.isStation(x, y), branches);
+                }
+                
+                stats.trees += (int)(struct.getTreeDensity(x, y) * 1.5);
+            }
+        }
+        
+        return stats;
+    }
+    
+    public int getTiles()
+    {
+        return width * height;
+    }
+    
+    public int getWidth()
+    {
+        return width;
+    }
+    
+    public int getHeight()
+    {
+        return height;
+    }
+    
+    public int getTerrainTiles(int altitude)
+    {
+        return terrainHistogram[altitude];
+    }
+    
+    public int getWaterTiles(int depth)
+    {
+        return waterHistogram[depth];
+    }
+    
+    public long getTerrainLevels()
+    {
+        long levels = 0;
+        for(int i=0; i<altitude_levels; i++)
+            levels += (long)i * terrainHistogram[i];
+        
+        return levels;
+    }
+    
+    public long getWaterLevels()
+    {
+        long levels = 0;
+        for(int i=0; i<altitude_levels; i++)
+            levels += (long)i * waterHistogram[i];
+        
+        return levels;
+    }
+    
+    public long getSectionLevels()
+    {
+        // each level of ground is one 16 block section, plus the one trees and roads stand in
+        return getTerrainLevels() + getWaterLevels() + getTiles();
+    }
+    
+    public int getFloodedTiles()
+    {
+        return floodedTiles;
+    }
+    
+    public int getWaterfallTiles()
+    {
+        return waterfallTiles;
+    }
+    
+    public int getTrees()
+    {
+        return trees;
+    }
+    
+    public int getEmptyLots()
+    {
+        return emptyLots;
+    }
+    
+    public int getRoadTiles()
+    {
+        return roadTiles;
+    }
+    
+    public int getHighwayTiles()
+    {
+        return highwayTiles;
+    }
+    
+    public int getRailTiles()
+    {
+        return railTiles;
+    }
+    
+    public long getPassageWrites()
+    {
+        return passageWrites;
+    }
+    
+    public int getUndergroundTiles()
+    {
+        return undergroundTiles;
+    }
+}
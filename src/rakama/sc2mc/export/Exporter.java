@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.export;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import rakama.sc2mc.Converter;
+import rakama.sc2mc.canvas.Canvas;
+import rakama.sc2mc.map.SC2Map;
+import rakama.sc2mc.palette.Palette;
+import rakama.sc2mc.palette.Theme;
+
+public class Exporter
+{
+    public static ExportBackend getBackend(String name, File output)
+    {
+        if(name.equals("world"))
+            return new WorldBackend(output);
+        else if(name.equals("volume"))
+            return new VolumeBackend(output);
+        else
+            throw new IllegalArgumentException("Unknown export backend '" + name + "'");
+    }
+    
+    public static void export(SC2Map map, ExportBackend backend, int x0, int y0, int x1, int y1, 
+            boolean verbose) throws IOException
+    {
+        export(map, backend, Palette.getDefaultPalette(), x0, y0, x1, y1, verbose);
+    }
+    
+    public static void export(SC2Map map, ExportBackend backend, Palette palette, int x0, int y0, int x1, int y1, 
+            boolean verbose) throws IOException
+    {
+        // find the block bounds of the tile rectangle
+        int scale = Converter.getGridScale();
+        int xMin = Converter.getDefaultOrigin(map.getTerrainMap().getWidth()) + x0 * scale;
+        int zMin = Converter.getDefaultOrigin(map.getTerrainMap().getHeight()) + y0 * scale;
+        int width = (x1 - x0) * scale;
+        int depth = (y1 - y0) * scale;
+        
+        Canvas canvas = backend.open(xMin, zMin, width, depth);
+        boolean converted = false;
+        
+        try
+        {
+            Converter converter = new Converter(map, canvas);
+            converter.setPalette(palette);
+            converter.convert(x0, y0, x1, y1, verbose);
+            converted = true;
+        }
+        finally
+        {
+            if(!converted)
+                backend.abort();
+        }
+        
+        backend.close();
+    }
+    
+    public static void main(String[] args) throws IOException
+    {
+        // options follow the positional arguments in any order
+        boolean verify = false, light = false;
+        int argCount = args.length;
+        while(argCount > 0 && args[argCount - 1].startsWith("-"))
+        {
+            String option = args[--argCount];
+            if(option.equals("-verify"))
+                verify = true;
+            else if(option.equals("-light"))
+                light = true;
+            else
+                argCount = -1;
+        }
+        
+        if(argCount != 3 && argCount != 4 && argCount != 7 && argCount != 8)
+        {
+            System.out.println("Usage: Exporter <input.sc2> <output> <world|volume> [x0 y0 x1 y1] [theme file] [-verify] [-light]");
+            return;
+        }
+        
+        // an invalid theme should fail before anything is written
+        Palette palette = Palette.getDefaultPalette();
+        if(argCount == 4 || argCount == 8)
+            palette = Theme.loadTheme(new File(args[argCount - 1])).compile();
+
+        SC2Map map;
+        FileInputStream in = new FileInputStream(new File(args[0]));
+        
+        try
+        {
+            map = SC2Map.loadMap(in);
+        }
+        finally
+        {
+            in.close();
+        }
+        
+        int x0 = 0, y0 = 0;
+        int x1 = map.getTerrainMap().getWidth();
+        int y1 = map.getTerrainMap().getHeight();
+        
+        if(argCount >= 7)
+        {
+            x0 = Integer.parseInt(args[3]);
+            y0 = Integer.parseInt(args[4]);
+            x1 = Integer.parseInt(args[5]);
+            y1 = Integer.parseInt(args[6]);
+        }
+        
+        ExportBackend backend = getBackend(args[2], new File(args[1]));
+        if(backend instanceof VolumeBackend)
+        {
+            ((VolumeBackend)backend).setVerify(verify);
+            ((VolumeBackend)backend).setLight(light);
+        }
+        
+        System.out.println("Reticulating mines...");
+        
+        export(map, backend, palette, x0, y0, x1, y1, true);
+        
+        System.out.println("Finished!");
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+package rakama.sc2mc.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.BitSet;
+
+// an anvil region file, a header of chunk locations and timestamps followed by 
+// zlib compressed chunks padded to whole sectors
+public class RegionFile
+{
+    public static final int sector_bytes = 4096;
+    public static final int max_sectors = 255;
+    
+    protected static final int chunk_count = 32 * 32;
+    protected static final int compression_zlib = 2;
+    
+    protected File path;
+    protected RandomAccessFile file;
+    protected int[] locations, timestamps;
+    protected BitSet usedSectors;
+    protected int sectorCount;
+    protected byte[] sectorBuffer;
+    
+    public RegionFile(File path) throws IOException
+    {
+        this.path = path;
+        this.file = new RandomAccessFile(path, "rw");
+        this.locations = new int[chunk_count];
+        this.timestamps = new int[chunk_count];
+        this.usedSectors = new BitSet();
+        this.sectorBuffer = new byte[sector_bytes];
+        
+        long length = file.length();
+        if(length < sector_bytes * 2)
+        {
+            // a new region, or one that never got its header
+            file.setLength(sector_bytes * 2);
+            length = sector_bytes * 2;
+        }
+        else
+        {
+            for(int i=0; i<chunk_count; i++)
+                locations[i] = file.readInt();
+            for(int i=0; i<chunk_count; i++)
+                timestamps[i] = file.readInt();
+        }
+        
+        sectorCount = (int)((length + sector_bytes - 1) / sector_bytes);
+        usedSectors.set(0, 2);
+        
+        // chunks that point past the end of the file are dropped rather than trusted
+        for(int i=0; i<chunk_count; i++)
+        {
+            int sector = locations[i] >>> 8;
+            int count = locations[i] & 0xFF;
+            
+            if(locations[i] == 0)
+                continue;
+            
+            if(sector < 2 || count == 0 || sector + count > sectorCount)
+            {
+                locations[i] = 0;
+                timestamps[i] = 0;
+                continue;
+            }
+            
+            usedSectors.set(sector, sector + count);
+        }
+    }
+    
+    public File getPath()
+    {
+        return path;
+    }
+    
+    public boolean hasChunk(int localX, int localZ)
+    {
+        return locations[toIndex(localX, localZ)] != 0;
+    }
+    
+    public void writeChunk(int localX, int localZ, byte[] data, int length) throws IOException
+    {
+        int sectors = (length + 5 + sector_bytes - 1) / sector_bytes;
+        if(sectors > max_sectors)
+            throw new IOException("Chunk (" + localX + ", " + localZ + ") in " + path.getName() + " is too large!");
+        
+        int index = toIndex(localX, localZ);
+        int sector = locations[index] >>> 8;
+        int count = locations[index] & 0xFF;
+        
+        // a chunk that still fits is rewritten in place, otherwise it moves
+        if(locations[index] == 0 || count != sectors)
+        {
+            if(locations[index] != 0)
+                usedSectors.clear(sector, sector + count);
+            
+            sector = allocate(sectors);
+        }
+        
+        // the chunk goes out in one write, padded so the file always ends on a sector boundary
+        int size = sectors * sector_bytes;
+        if(sectorBuffer.length < size)
+            sectorBuffer = new byte[size];
+        
+        putInt(sectorBuffer, 0, length + 1);
+        sectorBuffer[4] = compression_zlib;
+        System.arraycopy(data, 0, sectorBuffer, 5, length);
+        Arrays.fill(sectorBuffer, length + 5, size, (byte)0);
+        
+        file.seek((long)sector * sector_bytes);
+        file.write(sectorBuffer, 0, size);
+        
+        locations[index] = (sector << 8) | sectors;
+        timestamps[index] = (int)(System.currentTimeMillis() / 1000);
+    }
+    
+    public void deleteChunk(int localX, int localZ)
+    {
+        int index = toIndex(localX, localZ);
+        if(locations[index] == 0)
+            return;
+        
+        int sector = locations[index] >>> 8;
+        usedSectors.clear(sector, sector + (locations[index] & 0xFF));
+        locations[index] = 0;
+        timestamps[index] = 0;
+    }
+    
+    public void close() throws IOException
+    {
+        try
+        {
+            // the header goes last, so an interrupted write leaves the previous chunks in place
+            file.seek(0);
+            byte[] header = new byte[sector_bytes * 2];
+            for(int i=0; i<chunk_count; i++)
+            {
+                putInt(header, i * 4, locations[i]);
+                putInt(header, sector_bytes + i * 4, timestamps[i]);
+            }
+            
+            file.write(header);
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+    
+    protected int allocate(int sectors)
+    {
+        // first fit among freed sectors, otherwise append
+        int start = usedSectors.nextClearBit(2);
+        while(start < sectorCount)
+        {
+            int end = usedSectors.nextSetBit(start);
+            if(end < 0 || end > sectorCount)
+                end = sectorCount;
+            
+            if(end - start >= sectors)
+                break;
+            
+            start = usedSectors.nextClearBit(end);
+        }
+        
+        usedSectors.set(start, start + sectors);
+        sectorCount = Math.max(sectorCount, start + sectors);
+        return start;
+    }
+    
+    protected static int toIndex(int localX, int localZ)
+    {
+        return (localX & 31) | ((localZ & 31) << 5);
+    }
+    
+    protected static void putInt(byte[] buf, int offset, int val)
+    {
+        buf[offset] = (byte)(val >> 24);
+        buf[offset + 1] = (byte)(val >> 16);
+        buf[offset + 2] = (byte)(val >> 8);
+        buf[offset + 3] = (byte)val;
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+package rakama.sc2mc.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import rakama.sc2mc.canvas.MappedCanvas;
+import rakama.sc2mc.canvas.SkyLighter;
+import rakama.sc2mc.io.NBTOutputStream;
+import rakama.worldtools.data.Biome;
+
+// writes anvil chunks straight from a scratch canvas, with the height map and sky light 
+// a freshly generated chunk would have, so the game doesn't relight the whole map on load
+public class RegionWriter
+{
+    protected static final int section_count = 16;
+    protected static final int max_open_regions = 16;
+    protected static final int level_version = 19133;
+    protected static final long max_cached_bytes = 64 << 20;
+    protected static final int adler_base = 65521;
+    
+    protected File world, regionDir;
+    protected Map<Long, RegionFile> regions;
+    protected MappedCanvas lit;
+    protected SkyLighter lighter;
+    
+    protected ChunkBuffer raw, compressed;
+    protected Deflater deflater;
+    protected byte[] deflateBuffer;
+    
+    // compressed chunk bodies by content digest, chunks with the same blocks, biomes and 
+    // light share everything but their coordinates, which are stored in front of the body
+    protected Map<ByteBuffer, CachedBody> cache;
+    protected MessageDigest digest;
+    protected Adler32 adler;
+    protected long cachedBytes;
+    protected int chunks, dedupedChunks;
+    protected byte[] blocks, add, data, dark, biomes;
+    protected int spawnY;
+    
+    public RegionWriter(File world)
+    {
+        this.world = world;
+        this.regionDir = new File(world, "region");
+        this.regions = new LinkedHashMap<Long, RegionFile>(16, 0.75f, true);
+        this.raw = new ChunkBuffer(1 << 16);
+        this.compressed = new ChunkBuffer(1 << 14);
+        this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        this.deflateBuffer = new byte[1 << 14];
+        this.cache = new LinkedHashMap<ByteBuffer, CachedBody>(256, 0.75f, true);
+        this.adler = new Adler32();
+        
+        try
+        {
+            this.digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+        this.blocks = new byte[4096];
+        this.add = new byte[2048];
+        this.data = new byte[2048];
+        this.dark = new byte[2048];
+        this.biomes = new byte[256];
+        this.spawnY = 64;
+    }
+    
+    public File getWorld()
+    {
+        return world;
+    }
+    
+    public synchronized int getChunks()
+    {
+        return chunks;
+    }
+    
+    public synchronized int getDedupedChunks()
+    {
+        return dedupedChunks;
+    }
+    
+    public synchronized void write(MappedCanvas canvas) throws IOException
+    {
+        int regionXMin = canvas.getChunkXMin() >> 5;
+        int regionZMin = canvas.getChunkZMin() >> 5;
+        int regionXMax = (canvas.getChunkXMin() + canvas.getChunksX() - 1) >> 5;
+        int regionZMax = (canvas.getChunkZMin() + canvas.getChunksZ() - 1) >> 5;
+        
+        // visit chunks region by region so each region file is opened once
+        for(int rz=regionZMin; rz<=regionZMax; rz++)
+        {
+            for(int rx=regionXMin; rx<=regionXMax; rx++)
+            {
+                int czStart = Math.max(canvas.getChunkZMin(), rz << 5);
+                int czEnd = Math.min(canvas.getChunkZMin() + canvas.getChunksZ(), (rz + 1) << 5);
+                int cxStart = Math.max(canvas.getChunkXMin(), rx << 5);
+                int cxEnd = Math.min(canvas.getChunkXMin() + canvas.getChunksX(), (rx + 1) << 5);
+                
+                for(int cz=czStart; cz<czEnd; cz++)
+                    for(int cx=cxStart; cx<cxEnd; cx++)
+                        writeChunk(canvas, cx, cz);
+            }
+        }
+        
+        flush();
+    }
+    
+    // a chunk with nothing but air is removed, so the game generates it like any other
+    public synchronized void writeChunk(MappedCanvas canvas, int chunkX, int chunkZ) throws IOException
+    {
+        if(canvas != lit)
+        {
+            lit = canvas;
+            lighter = new SkyLighter(canvas);
+        }
+        
+        lighter.lightChunk(chunkX, chunkZ);
+        int top = lighter.getTopSection();
+        if(top < 0)
+        {
+            deleteChunk(chunkX, chunkZ);
+            return;
+        }
+        
+        if(chunkX == 0 && chunkZ == 0)
+            spawnY = lighter.getHeightMap()[8 | (8 << 4)] + 1;
+        
+        raw.reset();
+        NBTOutputStream nbt = new NBTOutputStream(raw);
+        nbt.beginCompound("");
+        nbt.beginCompound("Level");
+        nbt.writeInt("xPos", chunkX);
+        nbt.writeInt("zPos", chunkZ);
+        nbt.flush();
+        
+        // everything after the coordinates is the body
+        int prefixLength = raw.size();
+        nbt.writeLong("LastUpdate", 0);
+        nbt.writeByte("TerrainPopulated", 1);
+        nbt.writeByte("LightPopulated", 1);
+        
+        int x0 = chunkX << 4;
+        int z0 = chunkZ << 4;
+        for(int i=0; i<256; i++)
+        {
+            Biome biome = canvas.getBiome(x0 + (i & 0xF), z0 + (i >> 4));
+            biomes[i] = (byte)(biome == null ? -1 : biome.getID());
+        }
+        
+        nbt.writeByteArray("Biomes", biomes);
+        nbt.writeIntArray("HeightMap", lighter.getHeightMap());
+        
+        // every section up to the top one is kept, an omitted section reads as fully lit
+        nbt.beginList("Sections", NBTOutputStream.tag_compound, top + 1);
+        for(int section=0; section<=top; section++)
+            writeSection(nbt, section);
+        
+        nbt.beginList("Entities", NBTOutputStream.tag_compound, 0);
+        nbt.beginList("TileEntities", NBTOutputStream.tag_compound, 0);
+        nbt.end();
+        nbt.end();
+        nbt.flush();
+        
+        compress(prefixLength);
+        chunks++;
+        
+        getRegion(chunkX >> 5, chunkZ >> 5, true).writeChunk(chunkX & 31, chunkZ & 31, 
+                compressed.getBuffer(), compressed.size());
+    }
+    
+    protected void compress(int prefixLength) throws IOException
+    {
+        byte[] buf = raw.getBuffer();
+        int bodyLength = raw.size() - prefixLength;
+        
+        digest.reset();
+        digest.update(buf, prefixLength, bodyLength);
+        ByteBuffer key = ByteBuffer.allocate(24);
+        key.put(digest.digest()).putInt(bodyLength).flip();
+        
+        CachedBody body = cache.get(key);
+        if(body != null)
+        {
+            dedupedChunks++;
+        }
+        else
+        {
+            body = deflateBody(buf, prefixLength, bodyLength);
+            cache.put(key, body);
+            cachedBytes += body.deflated.length;
+            
+            Iterator<CachedBody> iter = cache.values().iterator();
+            while(cachedBytes > max_cached_bytes && iter.hasNext())
+            {
+                cachedBytes -= iter.next().deflated.length;
+                iter.remove();
+            }
+        }
+        
+        // a zlib stream of the coordinates in a stored block followed by the compressed body, 
+        // the checksum covers both
+        adler.reset();
+        adler.update(buf, 0, prefixLength);
+        int checksum = combineAdler((int)adler.getValue(), body.adler, bodyLength);
+        
+        compressed.reset();
+        compressed.write(0x78);
+        compressed.write(0x9C);
+        compressed.write(0);
+        compressed.write(prefixLength & 0xFF);
+        compressed.write(prefixLength >> 8);
+        compressed.write(~prefixLength & 0xFF);
+        compressed.write((~prefixLength >> 8) & 0xFF);
+        compressed.write(buf, 0, prefixLength);
+        compressed.write(body.deflated, 0, body.deflated.length);
+        compressed.write(checksum >>> 24);
+        compressed.write(checksum >>> 16);
+        compressed.write(checksum >>> 8);
+        compressed.write(checksum);
+    }
+    
+    protected CachedBody deflateBody(byte[] buf, int offset, int length)
+    {
+        deflater.reset();
+        deflater.setInput(buf, offset, length);
+        deflater.finish();
+        
+        ChunkBuffer out = new ChunkBuffer(length >> 3);
+        while(!deflater.finished())
+        {
+            int n = deflater.deflate(deflateBuffer);
+            out.write(deflateBuffer, 0, n);
+        }
+        
+        adler.reset();
+        adler.update(buf, offset, length);
+        return new CachedBody(out.toByteArray(), (int)adler.getValue());
+    }
+    
+    // the checksum of two concatenated blocks from the checksums of each, as zlib does it
+    protected static int combineAdler(int adler1, int adler2, int length2)
+    {
+        long rem = length2 % adler_base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % adler_base;
+        sum1 += (adler2 & 0xFFFF) + adler_base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + adler_base - rem;
+        
+        if(sum1 >= adler_base)
+            sum1 -= adler_base;
+        if(sum1 >= adler_base)
+            sum1 -= adler_base;
+        if(sum2 >= adler_base << 1)
+            sum2 -= adler_base << 1;
+        if(sum2 >= adler_base)
+            sum2 -= adler_base;
+        
+        return (int)(sum1 | (sum2 << 16));
+    }
+    
+    public synchronized void deleteChunk(int chunkX, int chunkZ) throws IOException
+    {
+        RegionFile region = getRegion(chunkX >> 5, chunkZ >> 5, false);
+        if(region != null)
+            region.deleteChunk(chunkX & 31, chunkZ & 31);
+    }
+    
+    // writes the headers of every open region, nothing written before this is visible to the game
+    public synchronized void flush() throws IOException
+    {
+        IOException error = null;
+        Iterator<RegionFile> iter = regions.values().iterator();
+        while(iter.hasNext())
+        {
+            try
+            {
+                iter.next().close();
+            }
+            catch(IOException e)
+            {
+                error = e;
+            }
+            
+            iter.remove();
+        }
+        
+        if(error != null)
+            throw error;
+    }
+    
+    public synchronized void close() throws IOException
+    {
+        flush();
+        
+        File level = new File(world, "level.dat");
+        if(!level.exists())
+            writeLevel(level);
+    }
+    
+    protected void writeSection(NBTOutputStream nbt, int section) throws IOException
+    {
+        // the lighter has already read the section's blocks
+        short[] values = lighter.getValues(section);
+        boolean hasAdd = false;
+        
+        for(int i=0; i<4096; i+=2)
+        {
+            int v0 = values[i] & 0xFFFF;
+            int v1 = values[i + 1] & 0xFFFF;
+            blocks[i] = (byte)(v0 >> 4);
+            blocks[i + 1] = (byte)(v1 >> 4);
+            data[i >> 1] = (byte)((v0 & 0xF) | ((v1 & 0xF) << 4));
+            add[i >> 1] = (byte)((v0 >> 12) | ((v1 >> 12) << 4));
+            hasAdd |= add[i >> 1] != 0;
+        }
+        
+        nbt.writeByte("Y", section);
+        nbt.writeByteArray("Blocks", blocks);
+        if(hasAdd)
+            nbt.writeByteArray("Add", add);
+        nbt.writeByteArray("Data", data);
+        nbt.writeByteArray("BlockLight", dark);
+        nbt.writeByteArray("SkyLight", lighter.getSkyLight(section));
+        nbt.end();
+    }
+    
+    protected RegionFile getRegion(int regionX, int regionZ, boolean create) throws IOException
+    {
+        Long key = ((long)regionX << 32) | (regionZ & 0xFFFFFFFFL);
+        RegionFile region = regions.get(key);
+        if(region != null)
+            return region;
+        
+        File path = new File(regionDir, "r." + regionX + "." + regionZ + ".mca");
+        if(!create && !path.exists())
+            return null;
+        
+        if(regions.size() >= max_open_regions)
+        {
+            Iterator<RegionFile> iter = regions.values().iterator();
+            RegionFile eldest = iter.next();
+            iter.remove();
+            eldest.close();
+        }
+        
+        regionDir.mkdirs();
+        region = new RegionFile(path);
+        regions.put(key, region);
+        return region;
+    }
+    
+    protected void writeLevel(File level) throws IOException
+    {
+        NBTOutputStream nbt = new NBTOutputStream(new GZIPOutputStream(new FileOutputStream(level)));
+        
+        try
+        {
+            nbt.beginCompound("");
+            nbt.beginCompound("Data");
+            nbt.writeInt("version", level_version);
+            nbt.writeString("LevelName", world.getName());
+            nbt.writeInt("SpawnX", 8);
+            nbt.writeInt("SpawnY", spawnY);
+            nbt.writeInt("SpawnZ", 8);
+            nbt.writeLong("LastPlayed", System.currentTimeMillis());
+            nbt.writeLong("RandomSeed", 0);
+            nbt.writeByte("MapFeatures", 0);
+            nbt.end();
+            nbt.end();
+        }
+        finally
+        {
+            nbt.close();
+        }
+    }
+    
+    protected static class CachedBody
+    {
+        byte[] deflated;
+        int adler;
+        
+        public CachedBody(byte[] deflated, int adler)
+        {
+            this.deflated = deflated;
+            this.adler = adler;
+        }
+    }
+    
+    protected static class ChunkBuffer extends ByteArrayOutputStream
+    {
+        public ChunkBuffer(int size)
+        {
+            super(size);
+        }
+        
+        public byte[] getBuffer()
+        {
+            return buf;
+        }
+    }
+}
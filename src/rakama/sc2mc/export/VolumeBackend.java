@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.export;
+
+import java.io.File;
+import java.io.IOException;
+
+import rakama.sc2mc.canvas.Canvas;
+import rakama.sc2mc.canvas.MappedCanvas;
+
+public class VolumeBackend implements ExportBackend
+{
+    protected File output, scratchFile;
+    protected MappedCanvas scratch;
+    protected int xMin, zMin, width, depth;
+    protected boolean verify, light;
+    
+    public VolumeBackend(File output)
+    {
+        this.output = output;
+        this.scratchFile = new File(output.getPath() + ".scratch");
+    }
+
+    // reads the written volume back and compares it with the scratch canvas
+    public void setVerify(boolean verify)
+    {
+        this.verify = verify;
+    }
+
+    // stores height maps and sky light with every chunk
+    public void setLight(boolean light)
+    {
+        this.light = light;
+    }
+
+    public Canvas open(int xMin, int zMin, int width, int depth) throws IOException
+    {
+        this.xMin = xMin;
+        this.zMin = zMin;
+        this.width = width;
+        this.depth = depth;
+        
+        // leave a chunk of margin for trees that overhang the edge
+        scratchFile.delete();
+        scratch = MappedCanvas.createCanvas(scratchFile, xMin - 16, zMin - 16, width + 32, depth + 32);
+        return scratch;
+    }
+
+    public void close() throws IOException
+    {
+        try
+        {
+            VolumeWriter writer = new VolumeWriter(output);
+            writer.setLight(light);
+            writer.write(scratch, xMin, zMin, width, depth);
+            
+            if(verify)
+                VolumeReader.verify(output, scratch);
+        }
+        catch(IOException e)
+        {
+            output.delete();
+            throw e;
+        }
+        catch(RuntimeException e)
+        {
+            output.delete();
+            throw e;
+        }
+        finally
+        {
+            scratch.close();
+            scratchFile.delete();
+        }
+    }
+    
+    public void abort() throws IOException
+    {
+        // nothing has been written to the output yet
+        scratch.close();
+        scratchFile.delete();
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.export;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import rakama.sc2mc.canvas.Canvas;
+import rakama.sc2mc.canvas.DiscardCanvas;
+import rakama.sc2mc.canvas.MappedCanvas;
+import rakama.sc2mc.canvas.SkyLighter;
+import rakama.worldtools.data.Biome;
+import rakama.worldtools.data.Block;
+
+public class VolumeReader
+{
+    protected File input;
+    protected int xMin, zMin, width, height, depth;
+    protected int chunks;
+    protected boolean light;
+    
+    protected Block[] palette;
+    protected Biome[] biomes;
+    
+    // payload of the chunk being read
+    protected byte[] payload;
+    protected int position;
+    
+    public VolumeReader(File input)
+    {
+        this.input = input;
+    }
+    
+    public void read(Canvas target) throws IOException
+    {
+        readPalette();
+        
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(input), 1 << 16));
+        chunks = 0;
+        
+        try
+        {
+            readHeader(in);
+            
+            // a corrupt chunk can't read past its buffer, only past its length
+            payload = new byte[getPayloadSize(height >> 4, light)];
+            
+            while(true)
+            {
+                int cx = in.readInt();
+                int cz = in.readInt();
+                if(cx == Integer.MIN_VALUE && cz == Integer.MIN_VALUE)
+                    break;
+                
+                int top = in.readUnsignedByte();
+                int length = in.readInt();
+                if(top > height >> 4 || length < 0 || length > getPayloadSize(top, light))
+                    throw new IOException("Invalid volume chunk!");
+                
+                in.readFully(payload, 0, length);
+                position = 0;
+                readChunk(target, cx, cz, top);
+                
+                if(position != length)
+                    throw new IOException("Invalid volume chunk!");
+
+                chunks++;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    public int getXMin()
+    {
+        return xMin;
+    }
+    
+    public int getZMin()
+    {
+        return zMin;
+    }
+    
+    public int getWidth()
+    {
+        return width;
+    }
+    
+    public int getDepth()
+    {
+        return depth;
+    }
+    
+    public int getChunks()
+    {
+        return chunks;
+    }
+    
+    public boolean hasLight()
+    {
+        return light;
+    }
+    
+    protected void readHeader(DataInputStream in) throws IOException
+    {
+        if(in.readInt() != VolumeWriter.magic)
+            throw new IOException("Invalid volume file!");
+        
+        int version = in.readInt();
+        if(version != VolumeWriter.version)
+            throw new IOException("Unsupported volume version " + version + "!");
+        
+        xMin = in.readInt();
+        zMin = in.readInt();
+        width = in.readInt();
+        height = in.readInt();
+        depth = in.readInt();
+        if(height != VolumeWriter.max_height)
+            throw new IOException("Invalid volume file!");
+        
+        int flags = in.readInt();
+        if((flags & ~VolumeWriter.flag_light) != 0)
+            throw new IOException("Unsupported volume flags " + flags + "!");
+        
+        light = (flags & VolumeWriter.flag_light) != 0;
+    }
+    
+    protected void readPalette() throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(input, "r");
+        
+        try
+        {
+            file.seek(file.length() - 4);
+            file.seek(file.readInt());
+            
+            // index 0 is always air
+            palette = new Block[file.readUnsignedShort()];
+            for(int i=0; i<palette.length; i++)
+            {
+                int id = file.readUnsignedShort();
+                int data = file.readUnsignedByte();
+                palette[i] = i == 0 ? null : Block.getBlock(id, data);
+            }
+            
+            biomes = new Biome[file.readUnsignedShort() + 1];
+            for(int i=1; i<biomes.length; i++)
+            {
+                String name = file.readUTF();
+                biomes[i] = MappedCanvas.toBiome(name);
+                if(biomes[i] == null)
+                    throw new IOException("Unknown biome " + name + "!");
+            }
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+    
+    protected static int getPayloadSize(int top, boolean light)
+    {
+        // the runs are variable, but never longer than two varints per block
+        return top * 4096 * 10 + 256 + (light ? 256 * 2 + top * 2048 : 0);
+    }
+    
+    protected void readChunk(Canvas target, int cx, int cz, int top) throws IOException
+    {
+        int x0 = cx << 4;
+        int z0 = cz << 4;
+        
+        // runs of palette indices in y, z, x order
+        int cells = top << 12;
+        int cell = 0;
+        while(cell < cells)
+        {
+            int length = readVarInt();
+            int index = readVarInt();
+            if(length <= 0 || cell + length > cells || index >= palette.length)
+                throw new IOException("Invalid volume chunk!");
+            
+            for(int end=cell + length; cell<end; cell++)
+                if(index != 0)
+                    target.setBlock(x0 + (cell & 0xF), cell >> 8, z0 + ((cell >> 4) & 0xF), palette[index]);
+        }
+        
+        for(int i=0; i<256; i++)
+        {
+            int index = payload[position++] & 0xFF;
+            if(index >= biomes.length)
+                throw new IOException("Invalid volume chunk!");
+            
+            if(index != 0)
+                target.setBiome(x0 + (i & 0xF), z0 + (i >> 4), biomes[index]);
+        }
+        
+        if(light)
+        {
+            readLight(cx, cz, top, payload, position);
+            position += 256 * 2 + top * 2048;
+        }
+    }
+    
+    // stored light is derived from the blocks, so a canvas has no use for it
+    protected void readLight(int cx, int cz, int top, byte[] data, int offset) throws IOException
+    {
+    }
+    
+    protected int readVarInt()
+    {
+        int value = 0;
+        int shift = 0;
+        int b;
+        
+        do
+        {
+            b = payload[position++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while((b & 0x80) != 0);
+        
+        return value;
+    }
+    
+    // reads the volume back into a scratch canvas and compares every chunk with the source, 
+    // stored light is compared with light computed from the source
+    public static void verify(File volume, final MappedCanvas source) throws IOException
+    {
+        final SkyLighter lighter = new SkyLighter(source);
+        VolumeReader reader = new VolumeReader(volume)
+        {
+            protected void readLight(int cx, int cz, int top, byte[] data, int offset) throws IOException
+            {
+                lighter.lightChunk(cx, cz);
+                if(top != lighter.getTopSection() + 1)
+                    throw new IOException("Volume light differs from its source in chunk (" + cx + ", " + cz + ")");
+                
+                int[] heightMap = lighter.getHeightMap();
+                for(int i=0; i<256; i++, offset+=2)
+                    if(heightMap[i] != (((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF)))
+                        throw new IOException("Volume light differs from its source in chunk (" + cx + ", " + cz + ")");
+                
+                for(int section=0; section<top; section++)
+                {
+                    byte[] expected = lighter.getSkyLight(section);
+                    for(int i=0; i<expected.length; i++)
+                        if(expected[i] != data[offset++])
+                            throw new IOException("Volume light differs from its source in chunk (" + cx + ", " + cz + ")");
+                }
+            }
+        };
+        
+        File scratchFile = new File(volume.getPath() + ".verify");
+        scratchFile.delete();
+        
+        MappedCanvas copy = new MappedCanvas(scratchFile, source.getChunkXMin(), source.getChunkZMin(), 
+                source.getChunksX(), source.getChunksZ());
+        
+        try
+        {
+            reader.read(copy);
+            
+            for(int cz=reader.zMin >> 4; cz<(reader.zMin + reader.depth) >> 4; cz++)
+            {
+                for(int cx=reader.xMin >> 4; cx<(reader.xMin + reader.width) >> 4; cx++)
+                {
+                    for(int i=0; i<256; i++)
+                    {
+                        int x = (cx << 4) + (i & 0xF);
+                        int z = (cz << 4) + (i >> 4);
+                        
+                        if(source.getBiome(x, z) != copy.getBiome(x, z))
+                            throw new IOException("Volume differs from its source in chunk (" + cx + ", " + cz + ")");
+                        
+                        for(int y=0; y<256; y++)
+                            if(source.getValue(x, y, z) != copy.getValue(x, y, z))
+                                throw new IOException("Volume differs from its source at (" + x + ", " + y + ", " + z + ")");
+                    }
+                }
+            }
+        }
+        finally
+        {
+            copy.close();
+            scratchFile.delete();
+        }
+    }
+    
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length != 1)
+        {
+            System.out.println("Usage: VolumeReader <volume>");
+            return;
+        }
+        
+        VolumeReader reader = new VolumeReader(new File(args[0]));
+        reader.read(new DiscardCanvas());
+        
+        System.out.println("Volume at (" + reader.getXMin() + ", " + reader.getZMin() + "), " + reader.getWidth() 
+                + " x " + reader.getDepth() + " blocks, " + reader.getChunks() + " chunks" 
+                + (reader.hasLight() ? " with light, " : ", ") 
+                + (reader.palette.length - 1) + " blocks and " + (reader.biomes.length - 1) + " biomes in its palettes");
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.export;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import rakama.sc2mc.canvas.MappedCanvas;
+import rakama.sc2mc.canvas.SkyLighter;
+import rakama.worldtools.data.Biome;
+
+public class VolumeWriter
+{
+    public static final int magic = 0x53433256;
+    public static final int version = 6;
+    public static final int max_height = 256;
+    
+    // header flags
+    public static final int flag_light = 1;
+    
+    protected File output;
+    protected DataOutputStream out;
+    protected long written;
+    
+    // uncompressed runs of the chunk being written
+    protected PayloadBuffer payload;
+    protected DataOutputStream payloadOut;
+    
+    protected int chunks;
+    
+    // height maps and sky light are only stored on request, readers can compute them
+    protected boolean light;
+    protected SkyLighter lighter;
+    
+    // palette indices by packed block value, 0 is always air
+    protected int[] palette;
+    protected int[] paletteValues;
+    protected int paletteSize;
+    
+    // biome indices start at 1, 0 is a column without a biome
+    protected Map<Biome, Integer> biomeIndices;
+    protected List<String> biomeNames;
+    
+    public VolumeWriter(File output)
+    {
+        this.output = output;
+    }
+    
+    public void setLight(boolean light)
+    {
+        this.light = light;
+    }
+    
+    public void write(MappedCanvas canvas, int xMin, int zMin, int width, int depth) throws IOException
+    {
+        if((xMin & 0xF) != 0 || (zMin & 0xF) != 0 || (width & 0xF) != 0 || (depth & 0xF) != 0)
+            throw new IllegalArgumentException("Volume bounds must be chunk aligned");
+        
+        palette = new int[1 << 16];
+        paletteValues = new int[1 << 16];
+        paletteSize = 1;
+        biomeIndices = new HashMap<Biome, Integer>();
+        biomeNames = new ArrayList<String>();
+        written = 0;
+        
+        payload = new PayloadBuffer();
+        payloadOut = new DataOutputStream(payload);
+        lighter = light ? new SkyLighter(canvas) : null;
+        chunks = 0;
+        
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1 << 16));
+        
+        try
+        {
+            // header
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeInt(xMin);
+            out.writeInt(zMin);
+            out.writeInt(width);
+            out.writeInt(max_height);
+            out.writeInt(depth);
+            out.writeInt(light ? flag_light : 0);
+            
+            // one record per chunk that holds anything but air
+            for(int cz=zMin >> 4; cz<(zMin + depth) >> 4; cz++)
+                for(int cx=xMin >> 4; cx<(xMin + width) >> 4; cx++)
+                    writeChunk(canvas, cx, cz);
+            
+            out.writeInt(Integer.MIN_VALUE);
+            out.writeInt(Integer.MIN_VALUE);
+            
+            // palette of (id, data) pairs
+            int paletteOffset = out.size();
+            out.writeShort(paletteSize);
+            for(int i=0; i<paletteSize; i++)
+            {
+                out.writeShort(paletteValues[i] >> 4);
+                out.writeByte(paletteValues[i] & 0xF);
+            }
+            
+            // biome palette by constant name
+            out.writeShort(biomeNames.size());
+            for(String name : biomeNames)
+                out.writeUTF(name);
+            
+            out.writeInt(paletteOffset);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    public long getWrittenBytes()
+    {
+        return output.length();
+    }
+    
+    public int getChunks()
+    {
+        return chunks;
+    }
+    
+    protected void writeChunk(MappedCanvas canvas, int cx, int cz) throws IOException
+    {
+        int top = 0;
+        for(int section=0; section<max_height >> 4; section++)
+            if(!canvas.isEmpty(cx, section, cz))
+                top = section + 1;
+
+        if(top == 0)
+            return;
+        
+        // runs of palette indices in y, z, x order up to the highest section
+        int x0 = cx << 4;
+        int z0 = cz << 4;
+        int runIndex = -1;
+        int runLength = 0;
+        
+        for(int y=0; y<top << 4; y++)
+        {
+            boolean empty = canvas.isEmpty(cx, y >> 4, cz);
+            
+            for(int i=0; i<256; i++)
+            {
+                int index = empty ? 0 : getPaletteIndex(canvas.getValue(x0 + (i & 0xF), y, z0 + (i >> 4)));
+                
+                if(index == runIndex)
+                {
+                    runLength++;
+                    continue;
+                }
+                
+                if(runLength > 0)
+                    writeRun(runLength, runIndex);
+                
+                runIndex = index;
+                runLength = 1;
+            }
+        }
+        
+        writeRun(runLength, runIndex);
+        
+        // biomes follow the runs, then the height map and sky light up to the highest section
+        for(int i=0; i<256; i++)
+            payloadOut.writeByte(getBiomeIndex(canvas.getBiome(x0 + (i & 0xF), z0 + (i >> 4))));
+        
+        if(light)
+        {
+            lighter.lightChunk(cx, cz);
+            
+            int[] heightMap = lighter.getHeightMap();
+            for(int i=0; i<256; i++)
+                payloadOut.writeShort(heightMap[i]);
+            
+            for(int section=0; section<top; section++)
+                payloadOut.write(lighter.getSkyLight(section));
+        }
+        
+        // payloads are stored as they are, runs already keep uniform sections small
+        out.writeInt(cx);
+        out.writeInt(cz);
+        out.writeByte(top);
+        out.writeInt(payload.size());
+        out.write(payload.getBuffer(), 0, payload.size());
+        payload.reset();
+        chunks++;
+    }
+    
+    protected int getPaletteIndex(int value)
+    {
+        if(value == 0)
+            return 0;
+        
+        int index = palette[value];
+        if(index == 0)
+        {
+            index = palette[value] = paletteSize;
+            paletteValues[paletteSize++] = value;
+        }
+        
+        return index;
+    }
+    
+    protected int getBiomeIndex(Biome biome)
+    {
+        if(biome == null)
+            return 0;
+        
+        Integer index = biomeIndices.get(biome);
+        if(index == null)
+        {
+            if(biomeNames.size() >= 255)
+                throw new IllegalStateException("Too many distinct biomes");
+            
+            biomeNames.add(MappedCanvas.getBiomeName(biome));
+            index = biomeNames.size();
+            biomeIndices.put(biome, index);
+        }
+        
+        return index;
+    }
+    
+    protected void writeRun(int length, int index) throws IOException
+    {
+        writeVarInt(length);
+        writeVarInt(index);
+    }
+    
+    protected void writeVarInt(int value) throws IOException
+    {
+        while((value & ~0x7F) != 0)
+        {
+            payloadOut.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        
+        payloadOut.writeByte(value);
+    }
+    
+    protected static class PayloadBuffer extends ByteArrayOutputStream
+    {
+        public PayloadBuffer()
+        {
+            super(1 << 12);
+        }
+        
+        public byte[] getBuffer()
+        {
+            return buf;
+        }
+    }
+}
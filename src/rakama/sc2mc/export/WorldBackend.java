@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.export;
+
+import java.io.File;
+import java.io.IOException;
+
+import rakama.sc2mc.canvas.Canvas;
+import rakama.sc2mc.canvas.MappedCanvas;
+
+public class WorldBackend implements ExportBackend
+{
+    protected File output, scratchFile;
+    protected MappedCanvas scratch;
+    
+    public WorldBackend(File output)
+    {
+        this.output = output;
+        this.scratchFile = new File(output, "sc2mc.scratch");
+    }
+
+    public Canvas open(int xMin, int zMin, int width, int depth) throws IOException
+    {
+        // leave a chunk of margin for trees that overhang the edge
+        output.mkdirs();
+        scratchFile.delete();
+        scratch = MappedCanvas.createCanvas(scratchFile, xMin - 16, zMin - 16, width + 32, depth + 32);
+        return scratch;
+    }
+
+    public void close() throws IOException
+    {
+        try
+        {
+            // chunks are lit as they are written, so every block has to be in place first
+            RegionWriter writer = new RegionWriter(output);
+            writer.write(scratch);
+            writer.close();
+        }
+        finally
+        {
+            scratch.close();
+            scratchFile.delete();
+        }
+    }
+    
+    public void abort() throws IOException
+    {
+        // nothing has been written to the world yet
+        scratch.close();
+        scratchFile.delete();
+    }
+}
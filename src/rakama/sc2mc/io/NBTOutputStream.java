@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// writes named binary tags, compounds and lists are closed by the caller
+public class NBTOutputStream
+{
+    public static final int tag_end = 0;
+    public static final int tag_byte = 1;
+    public static final int tag_int = 3;
+    public static final int tag_long = 4;
+    public static final int tag_byte_array = 7;
+    public static final int tag_string = 8;
+    public static final int tag_list = 9;
+    public static final int tag_compound = 10;
+    public static final int tag_int_array = 11;
+    
+    private DataOutputStream out;
+    
+    public NBTOutputStream(OutputStream out)
+    {
+        this.out = new DataOutputStream(out);
+    }
+    
+    public void writeByte(String name, int val) throws IOException
+    {
+        writeHeader(tag_byte, name);
+        out.writeByte(val);
+    }
+    
+    public void writeInt(String name, int val) throws IOException
+    {
+        writeHeader(tag_int, name);
+        out.writeInt(val);
+    }
+    
+    public void writeLong(String name, long val) throws IOException
+    {
+        writeHeader(tag_long, name);
+        out.writeLong(val);
+    }
+    
+    public void writeString(String name, String val) throws IOException
+    {
+        writeHeader(tag_string, name);
+        out.writeUTF(val);
+    }
+    
+    public void writeByteArray(String name, byte[] data) throws IOException
+    {
+        writeHeader(tag_byte_array, name);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+    
+    public void writeIntArray(String name, int[] data) throws IOException
+    {
+        writeHeader(tag_int_array, name);
+        out.writeInt(data.length);
+        for(int i=0; i<data.length; i++)
+            out.writeInt(data[i]);
+    }
+    
+    public void beginCompound(String name) throws IOException
+    {
+        writeHeader(tag_compound, name);
+    }
+    
+    // elements of a list are written without names, so compounds in a list 
+    // start directly with their first tag
+    public void beginList(String name, int type, int length) throws IOException
+    {
+        writeHeader(tag_list, name);
+        out.writeByte(type);
+        out.writeInt(length);
+    }
+    
+    public void end() throws IOException
+    {
+        out.writeByte(tag_end);
+    }
+    
+    public void flush() throws IOException
+    {
+        out.flush();
+    }
+    
+    public void close() throws IOException
+    {
+        out.close();
+    }
+    
+    private void writeHeader(int type, String name) throws IOException
+    {
+        out.writeByte(type);
+        out.writeUTF(name);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class SegOutputStream
+{
+    private OutputStream out;
+    
+    public SegOutputStream(OutputStream out)
+    {
+        this.out = out;
+    }
+    
+    public OutputStream getOutputStream()
+    {
+        return out;
+    }
+    
+    public void writeSegment(String header, byte[] data) throws IOException
+    {
+        writeString(header);
+        writeUInt32(data.length);
+        out.write(data);
+    }
+
+    public void writeCompressedSegment(String header, byte[] data) throws IOException
+    {
+        writeSegment(header, compress(data));
+    }
+    
+    public void writeString(String str) throws IOException
+    {
+        out.write(str.getBytes("US-ASCII"));
+    }
+    
+    public void writeUInt32(long val) throws IOException
+    {
+        out.write((int)(val >> 24) & 0xFF);
+        out.write((int)(val >> 16) & 0xFF);
+        out.write((int)(val >> 8) & 0xFF);
+        out.write((int)val & 0xFF);
+    }
+    
+    public static byte[] compress(byte[] data)
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        
+        int index = 0;
+        while(index < data.length)
+        {
+            // measure the run starting here
+            int run = 1;
+            while(index + run < data.length && run < 128 && data[index + run] == data[index])
+                run++;
+
+            if(run >= 3)
+            {
+                buffer.write(run + 127);
+                buffer.write(data[index]);
+                index += run;
+                continue;
+            }
+            
+            // copy literals until the next worthwhile run
+            int start = index;
+            while(index < data.length && index - start < 127)
+            {
+                if(index + 2 < data.length && data[index] == data[index + 1] && data[index] == data[index + 2])
+                    break;
+                
+                index++;
+            }
+            
+            buffer.write(index - start);
+            buffer.write(data, start, index - start);
+        }
+        
+        return buffer.toByteArray();
+    }
+}
@@ -18,7 +18,7 @@ package rakama.sc2mc.io;
 
 public class Segment
 {
-    static final int max_buffer_size = 65536;
+    static final int initial_buffer_size = 65536;
 
     String name;
     byte[] raw, decompressed;
@@ -46,7 +46,7 @@ public class Segment
     
     public void decompressData()
     {        
-        byte[] buffer = new byte[max_buffer_size];
+        byte[] buffer = new byte[initial_buffer_size];
         
         int size = 0;
         int index = 0;
@@ -57,6 +57,14 @@ public class Segment
             if(count == 0 || count == 128)
                 throw new RuntimeException("Invalid compression format!");
             
+            int length = count < 128 ? count : count - 127;
+            if(size + length > buffer.length)
+            {
+                byte[] larger = new byte[Math.max(buffer.length * 2, size + length)];
+                System.arraycopy(buffer, 0, larger, 0, size);
+                buffer = larger;
+            }
+            
             if(count < 128)
             {
                 for(int j=0; j<count; j++)
@@ -33,6 +33,7 @@ public class SC2Map
     
     protected TerrainMap terrainMap;
     protected StructureMap structureMap;
+    protected UndergroundMap undergroundMap;
     
     protected SC2Map(int fileSize)
     {
@@ -41,6 +42,17 @@ public class SC2Map
     }
     
     public static SC2Map loadMap(InputStream in) throws IOException
+    {
+        return loadMap(in, false);
+    }
+    
+    // only the terrain, for callers that need altitudes without the cost of the structures
+    public static SC2Map loadTerrain(InputStream in) throws IOException
+    {
+        return loadMap(in, true);
+    }
+    
+    protected static SC2Map loadMap(InputStream in, boolean terrainOnly) throws IOException
     {
         SegInputStream segin = new SegInputStream(in);
         
@@ -74,14 +86,41 @@ public class SC2Map
         
         xter.decompressData();
 
+        // standard maps are 128 x 128, but any square size is accepted
+        int tiles = xter.getDecompressedSize();
+        int size = (int)Math.round(Math.sqrt(tiles));
+        if(size * size != tiles || altm.getRawSize() != tiles * 2)
+            throw new IOException("Invalid map size!");
+
+        map.terrainMap = new TerrainMap(altm.getRawData(), xter.getDecompressedData(), size, size);
+        
+        if(terrainOnly)
+            return map;
+
         Segment xbld = map.getSegment("XBLD");
         if(xbld == null)
             throw new IOException("XBLD segment not found!");
 
         xbld.decompressData();
-
-        map.terrainMap = new TerrainMap(altm.getRawData(), xter.getDecompressedData());
-        map.structureMap = new StructureMap(xbld.getDecompressedData());
+        
+        if(xbld.getDecompressedSize() != tiles)
+            throw new IOException("Invalid map size!");
+        
+        map.structureMap = new StructureMap(xbld.getDecompressedData(), size, size);
+        
+        // the underground is optional, a missing segment means no underground features
+        byte[] underground = new byte[tiles];
+        Segment xund = map.getSegment("XUND");
+        if(xund != null)
+        {
+            xund.decompressData();
+            if(xund.getDecompressedSize() != tiles)
+                throw new IOException("Invalid map size!");
+            
+            underground = xund.getDecompressedData();
+        }
+        
+        map.undergroundMap = new UndergroundMap(underground, size, size, map.terrainMap);
         
         return map;
     }
@@ -124,6 +163,11 @@ public class SC2Map
         return structureMap;
     }    
     
+    public UndergroundMap getUndergroundMap()
+    {
+        return undergroundMap;
+    }
+    
     public int getFileSize()
     {
         return fileSize;
@@ -18,14 +18,14 @@ package rakama.sc2mc.map;
 
 public class StructureMap
 {    
-    protected static final int width = 128;
-    protected static final int height = 128;
-    
+    protected final int width, height;
     protected byte[] structure;
     
-    protected StructureMap(byte[] xbld)
+    protected StructureMap(byte[] xbld, int width, int height)
     {
-        structure = xbld;
+        this.width = width;
+        this.height = height;
+        this.structure = xbld;
     }
 
     public int getWidth()
@@ -38,6 +38,11 @@ public class StructureMap
         return height;
     }
 
+    public boolean isSameTile(StructureMap other, int x, int y)
+    {
+        return getStructureID(x, y) == other.getStructureID(x, y);
+    }
+
     public boolean isRoad(int x, int y)
     {
         int id = getStructureID(x, y);
@@ -91,19 +96,19 @@ public class StructureMap
         return structure[toIndex(x, y)] & 0xFF;
     }
     
-    protected static int toIndex(int x, int y)
+    protected int toIndex(int x, int y)
     {
-        return (127 - x) + (y << 7);
+        return (width - 1 - x) + y * width;
     }
 
-    protected static void checkBounds(int x, int y)
+    protected void checkBounds(int x, int y)
     {
         if(!inBounds(x, y))
             throw new IndexOutOfBoundsException("(" + x + ", " + y + ")");
     }
 
-    protected static boolean inBounds(int x, int y)
+    protected boolean inBounds(int x, int y)
     {
-        return x == (x & 0x7F) && y == (y & 0x7F);
+        return x >= 0 && x < width && y >= 0 && y < height;
     }
 }
\ No newline at end of file
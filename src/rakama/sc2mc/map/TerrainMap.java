@@ -18,21 +18,23 @@ package rakama.sc2mc.map;
 
 public class TerrainMap
 {
-    protected static final int width = 128;
-    protected static final int height = 128;    
     protected static final float canal_depth = 0.3f;
     
     protected enum Rotation{NONE, CLOCKWISE90, CLOCKWISE180, CLOCKWISE270};    
     protected enum Type{HIGH, LOW, SLOPE, CORNER_HIGH, CORNER_LOW, WATERFALL, CANAL};
         
+    protected final int width, height;
     protected int[] terrainAltitude;
     protected int[] waterAltitude;
     protected Type[] terrainType;
     protected Rotation[] terrainRotation;
     protected boolean[] terrainUnderwater;
     
-    protected TerrainMap(byte[] altm, byte[] xter)
+    protected TerrainMap(byte[] altm, byte[] xter, int width, int height)
     {
+        this.width = width;
+        this.height = height;
+        
         terrainAltitude = new int[width * height];
         waterAltitude = new int[width * height];
         terrainType = new Type[width * height];
@@ -64,6 +66,20 @@ public class TerrainMap
         return height;
     }
 
+    public boolean isSameTile(TerrainMap other, int x, int y)
+    {
+        checkBounds(x, y);
+        other.checkBounds(x, y);
+        int index = toIndex(x, y);
+        int otherIndex = other.toIndex(x, y);
+        
+        return terrainAltitude[index] == other.terrainAltitude[otherIndex]
+            && waterAltitude[index] == other.waterAltitude[otherIndex]
+            && terrainType[index] == other.terrainType[otherIndex]
+            && terrainRotation[index] == other.terrainRotation[otherIndex]
+            && terrainUnderwater[index] == other.terrainUnderwater[otherIndex];
+    }
+
     public boolean isFlat(int x, int y)
     {
         checkBounds(x, y);
@@ -185,6 +201,152 @@ public class TerrainMap
         return Math.min(altitude, canalAltitude);
     }
     
+    public void getSmoothAltitudes(int xi, int yi, int scale, float[] out)
+    {
+        checkBounds(xi, yi);
+
+        int index = toIndex(xi, yi);
+        float altitude = terrainAltitude[index];
+        Type type = terrainType[index];
+        Rotation rotation = terrainRotation[index];        
+        boolean underwater = terrainUnderwater[index];
+        
+        // everything that only depends on the tile is resolved up front
+        boolean canal = type == Type.CANAL || type == Type.WATERFALL;
+        boolean carve = !canal && isFlooded(xi, yi) && hasAdjacentCanal(xi, yi);
+        int mode0 = 0, mode90 = 0, mode180 = 0, mode270 = 0;
+        
+        if(canal || carve)
+        {
+            mode0 = getCanalMode(!isFloodedHelper(xi, yi - 1), !isFloodedHelper(xi - 1, yi - 1), !isFloodedHelper(xi - 1, yi));
+            mode90 = getCanalMode(!isFloodedHelper(xi + 1, yi), !isFloodedHelper(xi + 1, yi - 1), !isFloodedHelper(xi, yi - 1));
+            mode180 = getCanalMode(!isFloodedHelper(xi, yi + 1), !isFloodedHelper(xi + 1, yi + 1), !isFloodedHelper(xi + 1, yi));
+            mode270 = getCanalMode(!isFloodedHelper(xi - 1, yi), !isFloodedHelper(xi - 1, yi + 1), !isFloodedHelper(xi, yi + 1));
+        }
+        
+        int shape = getShape(type, underwater);
+        
+        for(int j=0; j<scale; j++)
+        {
+            float yf = (yi * scale + j + 0.5f) / scale - yi;
+            
+            for(int i=0; i<scale; i++)
+            {
+                float xf = (xi * scale + i + 0.5f) / scale - xi;
+                
+                float depth = 0;
+                if(canal || carve)
+                {
+                    depth = canal_depth;
+                    depth = Math.min(depth, canalModeDepth(mode0, xf, yf));
+                    depth = Math.min(depth, canalModeDepth(mode90, yf, 1 - xf));
+                    depth = Math.min(depth, canalModeDepth(mode180, 1 - xf, 1 - yf));
+                    depth = Math.min(depth, canalModeDepth(mode270, 1 - yf, xf));
+                }
+                
+                if(canal)
+                {
+                    out[i + j * scale] = altitude - depth;
+                    continue;
+                }
+                
+                float canalAltitude = altitude + 1;
+                if(carve)
+                    canalAltitude -= depth;
+                
+                float xr = xf;
+                float yr = yf;
+                
+                switch(rotation)
+                {
+                case CLOCKWISE90:
+                    xr = yf;
+                    yr = 1 - xf;
+                    break;
+                case CLOCKWISE180:
+                    xr = 1 - xf;
+                    yr = 1 - yf;
+                    break;
+                case CLOCKWISE270:
+                    xr = 1 - yf;
+                    yr = xf;
+                    break;
+                default:
+                    break;
+                }
+                
+                out[i + j * scale] = Math.min(altitude + getShapeOffset(shape, xr, yr), canalAltitude);
+            }
+        }
+    }
+    
+    private static int getCanalMode(boolean c1, boolean c2, boolean c3)
+    {
+        if(c1 && c3)
+            return 1;
+        else if(c1)
+            return 2;
+        else if(c2)
+            return 3;
+        
+        return 0;
+    }
+
+    private static float canalModeDepth(int mode, float xf, float yf)
+    {
+        switch(mode)
+        {
+        case 1:
+            return 1 - getFloodedCornerLow(1 - xf, yf);
+        case 2:
+            return 1 - getFloodedSlope(1 - xf, yf);
+        case 3:
+            return 1 - getFloodedCornerHigh(1 - xf, yf);
+        default:
+            return 1;
+        }
+    }
+    
+    private static int getShape(Type type, boolean underwater)
+    {
+        switch(type)
+        {
+        case HIGH:
+            return 1;
+        case SLOPE:
+            return underwater ? 3 : 2;
+        case CORNER_LOW:
+            return underwater ? 5 : 4;
+        case CORNER_HIGH:
+            return underwater ? 7 : 6;
+        default:
+            return 0;
+        }
+    }
+    
+    private static float getShapeOffset(int shape, float xf, float yf)
+    {
+        switch(shape)
+        {
+        case 1:
+            return 1;
+        case 2:
+            return getSlope(xf, yf);
+        case 3:
+            return getFloodedSlope(xf, yf);
+        case 4:
+            return getCornerLow(xf, yf);
+        case 5:
+            return getFloodedCornerLow(xf, yf);
+        case 6:
+            return getCornerHigh(xf, yf);
+        case 7:
+            return getFloodedCornerHigh(xf, yf);
+        default:
+            return 0;
+        }
+    }
+    
     protected float getCanalDepth(int x, int y, float xf, float yf)
     {        
         float depth = canal_depth;
@@ -299,23 +461,23 @@ public class TerrainMap
         return (float)Math.min(1, (1 - yf) * xf * 1.05f + 0.02f);
     }
         
-    protected static int toIndex(int x, int y)
+    protected int toIndex(int x, int y)
     {
-        return (127 - x) + (y << 7);
+        return (width - 1 - x) + y * width;
     }
 
-    protected static void checkBounds(int x, int y)
+    protected void checkBounds(int x, int y)
     {
         if(!inBounds(x, y))
             throw new IndexOutOfBoundsException("(" + x + ", " + y + ")");
     }
 
-    protected static boolean inBounds(int x, int y)
+    protected boolean inBounds(int x, int y)
     {
-        return x == (x & 0x7F) && y == (y & 0x7F);
+        return x >= 0 && x < width && y >= 0 && y < height;
     }
     
-    private static Type computeType(byte[] xter, int x, int y)
+    private Type computeType(byte[] xter, int x, int y)
     {
         switch(xter[toIndex(x, y)])
         {
@@ -346,7 +508,7 @@ public class TerrainMap
         }
     }
 
-    private static Rotation computeRotation(byte[] xter, int x, int y)
+    private Rotation computeRotation(byte[] xter, int x, int y)
     {
         switch(xter[toIndex(x, y)])
         {
@@ -367,17 +529,17 @@ public class TerrainMap
         }
     }
     
-    private static boolean computeUnderwater(byte[] xter, int x, int y)
+    private boolean computeUnderwater(byte[] xter, int x, int y)
     {
         return (xter[toIndex(x, y)] & 0x30) != 0;        
     }
 
-    private static int computeTerrainAltitude(byte[] altm, int x, int y)
+    private int computeTerrainAltitude(byte[] altm, int x, int y)
     {
         return altm[toIndex(x, y) * 2 + 1] & 0xF;
     }
     
-    private static int computeWaterAltitude(byte[] altm, int x, int y)
+    private int computeWaterAltitude(byte[] altm, int x, int y)
     {
         int index = toIndex(x, y);
         int byte1 = altm[index * 2] & 0xFF;
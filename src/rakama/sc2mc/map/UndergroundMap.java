@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.map;
+
+import java.util.Arrays;
+
+public class UndergroundMap
+{
+    public static final int subway = 0;
+    public static final int pipe = 1;
+    public static final int tunnel = 2;
+    
+    protected static final int network_types = 3;
+    
+    protected final int width, height;
+    protected byte[] underground;
+    
+    // indices of every tile with an underground feature, the seeds for labelling networks
+    protected int[] features;
+    
+    // lowest terrain altitude over each connected network, -1 where there is none
+    protected byte[][] networkAltitude;
+    
+    protected UndergroundMap(byte[] xund, int width, int height, TerrainMap terrain)
+    {
+        this.width = width;
+        this.height = height;
+        this.underground = xund;
+        
+        int count = 0;
+        for(int index=0; index<underground.length; index++)
+            if(underground[index] != 0)
+                count++;
+        
+        features = new int[count];
+        count = 0;
+        for(int index=0; index<underground.length; index++)
+            if(underground[index] != 0)
+                features[count++] = index;
+        
+        networkAltitude = new byte[network_types][];
+        for(int type=0; type<network_types; type++)
+            networkAltitude[type] = labelNetworks(type, terrain);
+    }
+    
+    public int getWidth()
+    {
+        return width;
+    }
+    
+    public int getHeight()
+    {
+        return height;
+    }
+    
+    public boolean isSameTile(UndergroundMap other, int x, int y)
+    {
+        if(getUndergroundID(x, y) != other.getUndergroundID(x, y))
+            return false;
+        
+        // a change anywhere along a network can move the whole network
+        for(int type=0; type<network_types; type++)
+            if(getNetworkAltitude(type, x, y) != other.getNetworkAltitude(type, x, y))
+                return false;
+        
+        return true;
+    }
+    
+    public boolean isSubway(int x, int y)
+    {
+        return isType(subway, getUndergroundID(x, y));
+    }
+    
+    public boolean isPipe(int x, int y)
+    {
+        return isType(pipe, getUndergroundID(x, y));
+    }
+    
+    public boolean isTunnel(int x, int y)
+    {
+        return isType(tunnel, getUndergroundID(x, y));
+    }
+
+    public boolean isStation(int x, int y)
+    {
+        return getUndergroundID(x, y) == 0x23;
+    }
+    
+    public boolean hasNetwork(int type, int x, int y)
+    {
+        return inBounds(x, y) && networkAltitude[type][toIndex(x, y)] >= 0;
+    }
+    
+    public int getNetworkAltitude(int type, int x, int y)
+    {
+        checkBounds(x, y);
+        return networkAltitude[type][toIndex(x, y)];
+    }
+    
+    public int getUndergroundID(int x, int y)
+    {
+        checkBounds(x, y);
+        return underground[toIndex(x, y)] & 0xFF;
+    }
+    
+    protected byte[] labelNetworks(int type, TerrainMap terrain)
+    {
+        byte[] altitude = new byte[width * height];
+        Arrays.fill(altitude, (byte)-1);
+        
+        int[] queue = new int[features.length];
+        
+        // flood each network once, visiting only feature tiles
+        for(int feature=0; feature<features.length; feature++)
+        {
+            int start = features[feature];
+            if(altitude[start] >= 0 || !isType(type, underground[start] & 0xFF))
+                continue;
+            
+            int head = 0;
+            int tail = 0;
+            int min = Integer.MAX_VALUE;
+            
+            queue[tail++] = start;
+            altitude[start] = 0;
+            
+            while(head < tail)
+            {
+                int index = queue[head++];
+                int x = width - 1 - index % width;
+                int y = index / width;
+                
+                min = Math.min(min, getLowestAltitude(terrain, x, y));
+                
+                tail = visit(type, altitude, queue, tail, x - 1, y);
+                tail = visit(type, altitude, queue, tail, x + 1, y);
+                tail = visit(type, altitude, queue, tail, x, y - 1);
+                tail = visit(type, altitude, queue, tail, x, y + 1);
+            }
+            
+            for(int i=0; i<tail; i++)
+                altitude[queue[i]] = (byte)min;
+        }
+        
+        return altitude;
+    }
+    
+    protected int visit(int type, byte[] altitude, int[] queue, int tail, int x, int y)
+    {
+        if(!inBounds(x, y))
+            return tail;
+        
+        int index = toIndex(x, y);
+        if(altitude[index] >= 0 || !isType(type, underground[index] & 0xFF))
+            return tail;
+        
+        altitude[index] = 0;
+        queue[tail++] = index;
+        return tail;
+    }
+    
+    protected int getLowestAltitude(TerrainMap terrain, int x, int y)
+    {
+        // the smooth surface can dip toward any lower neighbor
+        int min = terrain.getTerrainAltitude(x, y);
+        
+        if(x > 0)
+            min = Math.min(min, terrain.getTerrainAltitude(x - 1, y));
+        if(x < width - 1)
+            min = Math.min(min, terrain.getTerrainAltitude(x + 1, y));
+        if(y > 0)
+            min = Math.min(min, terrain.getTerrainAltitude(x, y - 1));
+        if(y < height - 1)
+            min = Math.min(min, terrain.getTerrainAltitude(x, y + 1));
+        
+        return min;
+    }
+    
+    protected static boolean isType(int type, int id)
+    {
+        switch(type)
+        {
+            case subway:
+                return (id >= 0x01 && id <= 0x0F) || id == 0x1F || id == 0x20 || id == 0x23;
+            case pipe:
+                return (id >= 0x10 && id <= 0x1E) || id == 0x1F || id == 0x20;
+            case tunnel:
+                return id == 0x21 || id == 0x22;
+            default:
+                return false;
+        }
+    }
+    
+    protected int toIndex(int x, int y)
+    {
+        return (width - 1 - x) + y * width;
+    }
+
+    protected void checkBounds(int x, int y)
+    {
+        if(!inBounds(x, y))
+            throw new IndexOutOfBoundsException("(" + x + ", " + y + ")");
+    }
+
+    protected boolean inBounds(int x, int y)
+    {
+        return x >= 0 && x < width && y >= 0 && y < height;
+    }
+}
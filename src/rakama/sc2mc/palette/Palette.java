@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+package rakama.sc2mc.palette;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Locale;
+
+import rakama.sc2mc.map.SC2Map;
+import rakama.sc2mc.map.StructureMap;
+import rakama.sc2mc.map.TerrainMap;
+import rakama.worldtools.data.Biome;
+import rakama.worldtools.data.Block;
+
+public class Palette
+{
+    // terrain never rises above 15 levels of 16 blocks, so every depth fits
+    public static final int depth_limit = 256;
+    
+    // single blocks used by the structure passes
+    public static final int water = 0;
+    public static final int flowing_water = 1;
+    public static final int bedrock = 2;
+    public static final int shrub = 3;
+    public static final int wood = 4;
+    public static final int leaves = 5;
+    public static final int tree_soil = 6;
+    public static final int road = 7;
+    public static final int highway = 8;
+    public static final int pipe_wall = 9;
+    public static final int pipe_fill = 10;
+    public static final int subway_wall = 11;
+    public static final int tunnel_wall = 12;
+    
+    protected static final String[] material_names = {"water", "flowing_water", "bedrock", "shrub", "wood", 
+        "leaves", "tree_soil", "road", "highway", "pipe_wall", "pipe_fill", "subway_wall", "tunnel_wall"};
+    
+    // a tile's flags combine one class of each kind, in the order of these names
+    protected static final String[] terrain_classes = {"flat", "slope", "canal", "waterfall"};
+    protected static final String[] water_classes = {"dry", "flooded"};
+    protected static final String[] structure_classes = {"building", "emptylot", "trees", "road", "rail", "highway", "powerline"};
+    protected static final String[][] class_names = {terrain_classes, water_classes, structure_classes};
+    protected static final int flag_count = terrain_classes.length * water_classes.length * structure_classes.length;
+    
+    protected static Palette defaultPalette;
+    
+    protected Block[] terrain;
+    protected Biome[] biomes;
+    protected Block[] materials;
+    
+    protected Palette()
+    {
+        this.terrain = new Block[flag_count * depth_limit];
+        this.biomes = new Biome[flag_count];
+        this.materials = new Block[material_names.length];
+    }
+    
+    public static synchronized Palette getDefaultPalette()
+    {
+        if(defaultPalette == null)
+        {
+            try
+            {
+                defaultPalette = compile(new Theme());
+            }
+            catch(IOException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+        
+        return defaultPalette;
+    }
+    
+    public static Palette compile(Theme theme) throws IOException
+    {
+        Palette palette = new Palette();
+        
+        // rules are indexed by which classes they name, unnamed ones match any tile
+        int rules = theme.getKeys().size();
+        int[][] bandClasses = new int[rules][];
+        int[] bandLimits = new int[rules];
+        Block[] bandBlocks = new Block[rules];
+        int[][] biomeClasses = new int[rules][];
+        Biome[] biomeValues = new Biome[rules];
+        int bandCount = 0;
+        int biomeCount = 0;
+        
+        for(String key : theme.getKeys())
+        {
+            String value = theme.getProperty(key);
+            String[] parts = key.split("\\.");
+            
+            if(parts[0].equals("terrain"))
+            {
+                if(parts.length < 3 || !parts[parts.length - 2].equals("depth"))
+                    throw new IOException("Invalid theme key " + key);
+                
+                bandClasses[bandCount] = parseClasses(key, parts, 1, parts.length - 2);
+                bandLimits[bandCount] = parseDepth(key, parts[parts.length - 1]);
+                bandBlocks[bandCount] = parseBlock(key, value);
+                bandCount++;
+            }
+            else if(parts[0].equals("biome"))
+            {
+                biomeClasses[biomeCount] = parseClasses(key, parts, 1, parts.length);
+                biomeValues[biomeCount] = parseBiome(key, value);
+                biomeCount++;
+            }
+            else
+            {
+                int material = indexOf(material_names, key);
+                if(material < 0)
+                    throw new IOException("Unknown theme key " + key);
+                
+                palette.materials[material] = parseBlock(key, value);
+            }
+        }
+        
+        for(int i=0; i<material_names.length; i++)
+            if(palette.materials[i] == null)
+                throw new IOException("Theme has no block for " + material_names[i]);
+        
+        int[] classes = new int[class_names.length];
+        
+        for(int flags=0; flags<flag_count; flags++)
+        {
+            toClasses(flags, classes);
+            
+            // the most specific band wins, and within it the narrowest one reaching this depth
+            for(int depth=1; depth<depth_limit; depth++)
+            {
+                int best = -1;
+                
+                for(int i=0; i<bandCount; i++)
+                {
+                    if(bandLimits[i] < depth || !matches(bandClasses[i], classes))
+                        continue;
+                    
+                    if(best < 0 || isBetter(bandClasses[i], bandLimits[i], bandClasses[best], bandLimits[best]))
+                        best = i;
+                }
+                
+                if(best < 0)
+                    throw new IOException("Theme has no terrain block for depth " + depth + " on " + describe(classes));
+                
+                palette.terrain[flags * depth_limit + depth] = bandBlocks[best];
+            }
+            
+            // depth zero is never rendered, it only keeps the table dense
+            palette.terrain[flags * depth_limit] = palette.terrain[flags * depth_limit + 1];
+            
+            int best = -1;
+            for(int i=0; i<biomeCount; i++)
+                if(matches(biomeClasses[i], classes) && (best < 0 || getRank(biomeClasses[i]) > getRank(biomeClasses[best])))
+                    best = i;
+            
+            if(best < 0)
+                throw new IOException("Theme has no biome for " + describe(classes));
+            
+            palette.biomes[flags] = biomeValues[best];
+        }
+        
+        return palette;
+    }
+    
+    public int getTileFlags(SC2Map map, int x0, int y0)
+    {
+        TerrainMap terra = map.getTerrainMap();
+        StructureMap struct = map.getStructureMap();
+        
+        int terrain = 0;
+        if(terra.isWaterfall(x0, y0))
+            terrain = 3;
+        else if(terra.isCanal(x0, y0))
+            terrain = 2;
+        else if(terra.isSlope(x0, y0))
+            terrain = 1;
+        
+        int water = terra.isFlooded(x0, y0) ? 1 : 0;
+        
+        // crossings count as the larger structure
+        int structure = 0;
+        if(struct.isHighway(x0, y0))
+            structure = 5;
+        else if(struct.isRail(x0, y0))
+            structure = 4;
+        else if(struct.isRoad(x0, y0))
+            structure = 3;
+        else if(struct.isPowerline(x0, y0))
+            structure = 6;
+        else if(struct.getTreeDensity(x0, y0) > 0)
+            structure = 2;
+        else if(struct.isEmptyLot(x0, y0))
+            structure = 1;
+        
+        return terrain + terrain_classes.length * (water + water_classes.length * structure);
+    }
+    
+    public Block getTerrainBlock(int flags, int depth)
+    {
+        return terrain[flags * depth_limit + depth];
+    }
+    
+    public Biome getBiome(int flags)
+    {
+        return biomes[flags];
+    }
+    
+    public Block getMaterial(int material)
+    {
+        return materials[material];
+    }
+    
+    // FNV-1a over the compiled tables, equal for palettes that render alike
+    public String getSignature()
+    {
+        long hash = 0xCBF29CE484222325L;
+        
+        for(int i=0; i<terrain.length; i++)
+            hash = (hash ^ getValue(terrain[i])) * 0x100000001B3L;
+        
+        for(int i=0; i<materials.length; i++)
+            hash = (hash ^ getValue(materials[i])) * 0x100000001B3L;
+        
+        for(int i=0; i<biomes.length; i++)
+            hash = (hash ^ (biomes[i] == null ? -1 : biomes[i].getID())) * 0x100000001B3L;
+        
+        return Long.toHexString(hash);
+    }
+    
+    protected static int getValue(Block block)
+    {
+        return block == null ? 0 : (block.getID() << 4) | (block.getData() & 0xF);
+    }
+    
+    protected static void toClasses(int flags, int[] out)
+    {
+        for(int i=0; i<class_names.length; i++)
+        {
+            out[i] = flags % class_names[i].length;
+            flags /= class_names[i].length;
+        }
+    }
+    
+    protected static boolean matches(int[] rule, int[] classes)
+    {
+        for(int i=0; i<rule.length; i++)
+            if(rule[i] >= 0 && rule[i] != classes[i])
+                return false;
+        
+        return true;
+    }
+    
+    protected static boolean isBetter(int[] rule, int limit, int[] best, int bestLimit)
+    {
+        int rank = getRank(rule);
+        int bestRank = getRank(best);
+        return rank > bestRank || (rank == bestRank && limit < bestLimit);
+    }
+    
+    protected static int getRank(int[] rule)
+    {
+        // structure outranks water, which outranks terrain
+        int rank = 0;
+        for(int i=0; i<rule.length; i++)
+            if(rule[i] >= 0)
+                rank |= 1 << i;
+        
+        return rank;
+    }
+    
+    protected static int[] parseClasses(String key, String[] parts, int start, int end) throws IOException
+    {
+        int[] rule = {-1, -1, -1};
+        
+        for(int i=start; i<end; i++)
+        {
+            boolean found = false;
+            
+            for(int kind=0; kind<class_names.length && !found; kind++)
+            {
+                int index = indexOf(class_names[kind], parts[i]);
+                if(index < 0)
+                    continue;
+                
+                if(rule[kind] >= 0)
+                    throw new IOException("Invalid theme key " + key);
+                
+                rule[kind] = index;
+                found = true;
+            }
+            
+            if(!found)
+                throw new IOException("Unknown tile class '" + parts[i] + "' in " + key);
+        }
+        
+        return rule;
+    }
+    
+    protected static int parseDepth(String key, String str) throws IOException
+    {
+        try
+        {
+            int depth = Integer.parseInt(str);
+            if(depth >= 1 && depth < depth_limit)
+                return depth;
+        }
+        catch(NumberFormatException e)
+        {
+        }
+        
+        throw new IOException("Invalid depth '" + str + "' in " + key);
+    }
+    
+    protected static Block parseBlock(String key, String value) throws IOException
+    {
+        // either a named constant of Block, or id[:data]
+        if(value.length() > 0 && Character.isDigit(value.charAt(0)))
+        {
+            try
+            {
+                int colon = value.indexOf(':');
+                int id = Integer.parseInt(colon < 0 ? value : value.substring(0, colon));
+                int data = colon < 0 ? 0 : Integer.parseInt(value.substring(colon + 1));
+                
+                if(id < 4096 && data < 16 && data >= 0)
+                    return Block.getBlock(id, data);
+            }
+            catch(NumberFormatException e)
+            {
+            }
+            
+            throw new IOException("Invalid block '" + value + "' for " + key);
+        }
+        
+        Object block = getConstant(Block.class, value);
+        if(!(block instanceof Block))
+            throw new IOException("Invalid block '" + value + "' for " + key);
+        
+        return (Block)block;
+    }
+    
+    protected static Biome parseBiome(String key, String value) throws IOException
+    {
+        Object biome = getConstant(Biome.class, value);
+        if(!(biome instanceof Biome))
+            throw new IOException("Invalid biome '" + value + "' for " + key);
+        
+        return (Biome)biome;
+    }
+    
+    protected static Object getConstant(Class<?> type, String name)
+    {
+        try
+        {
+            Field field = type.getField(name.toUpperCase(Locale.ROOT));
+            if(!Modifier.isStatic(field.getModifiers()))
+                return null;
+            
+            return field.get(null);
+        }
+        catch(NoSuchFieldException e)
+        {
+            return null;
+        }
+        catch(IllegalAccessException e)
+        {
+            return null;
+        }
+    }
+    
+    protected static String describe(int[] classes)
+    {
+        return terrain_classes[classes[0]] + " " + water_classes[classes[1]] + " " + structure_classes[classes[2]] + " tiles";
+    }
+    
+    protected static int indexOf(String[] names, String name)
+    {
+        for(int i=0; i<names.length; i++)
+            if(names[i].equals(name))
+                return i;
+        
+        return -1;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+package rakama.sc2mc.palette;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class Theme
+{
+    // the look of the stock converter, a loaded theme only overrides what it names
+    protected static final String[][] default_entries = {
+        {"terrain.depth.1", "SANDSTONE"},
+        {"terrain.depth.3", "DIRT"},
+        {"terrain.depth.255", "STONE"},
+        {"biome", "FOREST"},
+        {"water", "WATER"},
+        {"flowing_water", "9:8"},
+        {"bedrock", "BEDROCK"},
+        {"shrub", "SHRUB"},
+        {"wood", "WOOD"},
+        {"leaves", "18"},
+        {"tree_soil", "DIRT"},
+        {"road", "STONE"},
+        {"highway", "STONE"},
+        {"pipe_wall", "20"},
+        {"pipe_fill", "WATER"},
+        {"subway_wall", "STONE"},
+        {"tunnel_wall", "STONE"}};
+    
+    protected Properties props;
+    
+    public Theme()
+    {
+        this.props = new Properties();
+        
+        for(String[] entry : default_entries)
+            props.setProperty(entry[0], entry[1]);
+    }
+    
+    public static Theme loadTheme(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        
+        try
+        {
+            return loadTheme(in);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    public static Theme loadTheme(InputStream in) throws IOException
+    {
+        Properties loaded = new Properties();
+        loaded.load(in);
+        
+        Theme theme = new Theme();
+        for(String key : loaded.stringPropertyNames())
+            theme.setProperty(key, loaded.getProperty(key));
+        
+        return theme;
+    }
+    
+    public void saveTheme(File file) throws IOException
+    {
+        OutputStream out = new FileOutputStream(file);
+        
+        try
+        {
+            props.store(out, "SC2MC theme");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    public String getProperty(String key)
+    {
+        return props.getProperty(key);
+    }
+    
+    public void setProperty(String key, String value)
+    {
+        props.setProperty(key.trim(), value.trim());
+    }
+    
+    public void removeProperty(String key)
+    {
+        props.remove(key);
+    }
+    
+    public Set<String> getKeys()
+    {
+        return new TreeSet<String>(props.stringPropertyNames());
+    }
+    
+    public Palette compile() throws IOException
+    {
+        return Palette.compile(this);
+    }
+}
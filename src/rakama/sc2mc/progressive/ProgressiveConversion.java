@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.progressive;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import rakama.sc2mc.Converter;
+import rakama.sc2mc.SpiralListener;
+import rakama.sc2mc.canvas.MappedCanvas;
+import rakama.sc2mc.export.RegionWriter;
+import rakama.sc2mc.map.SC2Map;
+import rakama.sc2mc.palette.Palette;
+import rakama.sc2mc.palette.Theme;
+
+public class ProgressiveConversion implements SpiralListener
+{
+    protected File input, output;
+    protected int spawnX, spawnY;
+    protected Palette palette;
+    
+    protected MappedCanvas scratch;
+    protected RegionWriter writer;
+    protected int pending, published;
+    protected int publishRings;
+    protected long startTime;
+    protected boolean verbose;
+    
+    public ProgressiveConversion(File input, File output, int spawnX, int spawnY)
+    {
+        this.input = input;
+        this.output = output;
+        this.spawnX = spawnX;
+        this.spawnY = spawnY;
+        this.palette = Palette.getDefaultPalette();
+    }
+    
+    public void setPalette(Palette palette)
+    {
+        this.palette = palette;
+    }
+    
+    public void run(boolean verbose) throws IOException
+    {
+        SC2Map map = loadMap(input);
+        int width = map.getTerrainMap().getWidth();
+        int height = map.getTerrainMap().getHeight();
+        
+        // negative spawn coordinates select the center of the map
+        int x0 = spawnX < 0 ? width >> 1 : spawnX;
+        int y0 = spawnY < 0 ? height >> 1 : spawnY;
+        
+        output.mkdirs();
+        File scratchFile = new File(output, "sc2mc.scratch");
+        
+        // tiles spill into their neighbors, so chunks are staged until final
+        int scale = Converter.getGridScale();
+        scratch = MappedCanvas.createCanvas(scratchFile, 
+                Converter.getDefaultOrigin(width) - 16, Converter.getDefaultOrigin(height) - 16, 
+                width * scale + 32, height * scale + 32);
+        
+        try
+        {
+            writer = new RegionWriter(output);
+            startTime = System.currentTimeMillis();
+            publishRings = 1;
+            this.verbose = verbose;
+            
+            Converter converter = new Converter(map, scratch);
+            converter.setPalette(palette);
+            converter.addSpiralListener(this);
+            converter.convertSpiral(x0, y0, verbose);
+            
+            // every chunk, the margin included, was handed out with its ring
+            writer.close();
+            publish();
+        }
+        finally
+        {
+            scratch.close();
+        }
+        
+        scratchFile.delete();
+    }
+    
+    public void chunkCompleted(Converter converter, int chunkX, int chunkZ)
+    {
+        try
+        {
+            writer.writeChunk(scratch, chunkX, chunkZ);
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException("Unable to write chunk (" + chunkX + ", " + chunkZ + ")", e);
+        }
+        
+        pending++;
+    }
+    
+    public void ringCompleted(Converter converter, int ring)
+    {
+        // chunks are only visible once their region headers are written, which happens after 
+        // 1, 2, 4, 8... rings, so the area around the spawn shows up early without every 
+        // ring reopening the regions it touches
+        if(ring + 1 < publishRings)
+            return;
+        
+        publishRings <<= 1;
+        
+        try
+        {
+            writer.flush();
+        }
+        catch(IOException e)
+        {
+            throw new RuntimeException("Unable to publish regions", e);
+        }
+        
+        publish();
+    }
+    
+    protected void publish()
+    {
+        if(pending == 0)
+            return;
+        
+        published += pending;
+        pending = 0;
+        
+        if(verbose)
+            log("Published " + published + " chunks after " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+    
+    protected static SC2Map loadMap(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        
+        try
+        {
+            return SC2Map.loadMap(in);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    protected static void log(String str)
+    {
+        System.out.println(str);
+    }
+    
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length != 2 && args.length != 4 && args.length != 5)
+        {
+            System.out.println("Usage: ProgressiveConversion <input.sc2> <output world> [spawn tile x] [spawn tile y] [theme file]");
+            return;
+        }
+        
+        int spawnX = args.length > 2 ? Integer.parseInt(args[2]) : -1;
+        int spawnY = args.length > 2 ? Integer.parseInt(args[3]) : -1;
+        Palette palette = args.length > 4 ? Theme.loadTheme(new File(args[4])).compile() : Palette.getDefaultPalette();
+        ProgressiveConversion conversion = new ProgressiveConversion(new File(args[0]), new File(args[1]), spawnX, spawnY);
+        conversion.setPalette(palette);
+        
+        System.out.println("Reticulating mines...");
+        
+        conversion.run(true);
+        
+        System.out.println("Finished!");
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.resume;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+
+import rakama.sc2mc.Converter;
+import rakama.sc2mc.RenderPass;
+
+public class Journal
+{
+    protected File file;
+    protected String input, settings;
+    protected int lastRow;
+    protected boolean finished;
+    
+    protected Journal(File file, String input)
+    {
+        this.file = file;
+        this.input = input;
+        this.lastRow = -1;
+    }
+    
+    public static Journal openJournal(File file, File inputFile) throws IOException
+    {
+        String input = inputFile.length() + " " + inputFile.lastModified() + " " + inputFile.getAbsolutePath();
+        Journal journal = new Journal(file, input);
+        
+        if(!file.exists())
+        {
+            journal.append("input " + input);
+            return journal;
+        }
+        
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        
+        try
+        {
+            String line = in.readLine();
+            if(line == null || !line.equals("input " + input))
+                throw new IOException("Journal " + file + " belongs to a different conversion");
+            
+            // a torn last line is ignored, the entry before it still holds
+            line = in.readLine();
+            while(line != null)
+            {
+                if(line.startsWith("settings "))
+                    journal.settings = line.substring(9);
+                else if(line.equals("finished"))
+                    journal.finished = true;
+                else if(line.startsWith("row "))
+                {
+                    try
+                    {
+                        journal.lastRow = Math.max(journal.lastRow, Integer.parseInt(line.substring(4)));
+                    }
+                    catch(NumberFormatException e)
+                    {
+                        break;
+                    }
+                }
+                
+                line = in.readLine();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        
+        return journal;
+    }
+    
+    // settings are recorded until the first checkpoint, after that they must match
+    public void checkSettings(Converter converter) throws IOException
+    {
+        String current = describeSettings(converter);
+        
+        if(lastRow < 0 && !finished)
+        {
+            if(!current.equals(settings))
+                append("settings " + current);
+            
+            settings = current;
+        }
+        else if(!current.equals(settings))
+        {
+            throw new IOException("Journal " + file + " was written with different settings (" 
+                    + settings + "), delete it to start over");
+        }
+    }
+    
+    public static String describeSettings(Converter converter)
+    {
+        StringBuilder str = new StringBuilder("palette " + converter.getPalette().getSignature() + " passes");
+        
+        for(RenderPass pass : converter.getPasses())
+            if(converter.isPassEnabled(pass))
+                str.append(" " + pass.getName());
+        
+        return str.toString();
+    }
+    
+    public int getLastRow()
+    {
+        return lastRow;
+    }
+    
+    public boolean isFinished()
+    {
+        return finished;
+    }
+    
+    // forgets every checkpoint, for when the scratch volume they refer to is gone
+    public void reset() throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file);
+        
+        try
+        {
+            out.write(("input " + input + "\n").getBytes("UTF-8"));
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        
+        settings = null;
+        lastRow = -1;
+        finished = false;
+    }
+    
+    public void recordRow(int row) throws IOException
+    {
+        append("row " + row);
+        lastRow = row;
+    }
+    
+    public void recordFinished() throws IOException
+    {
+        append("finished");
+        finished = true;
+    }
+    
+    protected void append(String line) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file, true);
+        
+        try
+        {
+            out.write((line + "\n").getBytes("UTF-8"));
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
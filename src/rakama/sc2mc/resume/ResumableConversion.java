@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.resume;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import rakama.sc2mc.ConversionListener;
+import rakama.sc2mc.Converter;
+import rakama.sc2mc.canvas.MappedCanvas;
+import rakama.sc2mc.export.RegionWriter;
+import rakama.sc2mc.map.SC2Map;
+import rakama.sc2mc.palette.Palette;
+import rakama.sc2mc.palette.Theme;
+
+public class ResumableConversion
+{
+    public static final int default_checkpoint_rows = 8;
+    
+    protected File input, output;
+    protected int checkpointRows;
+    protected Palette palette;
+    
+    public ResumableConversion(File input, File output, int checkpointRows)
+    {
+        this.input = input;
+        this.output = output;
+        this.checkpointRows = checkpointRows;
+        this.palette = Palette.getDefaultPalette();
+    }
+    
+    public void setPalette(Palette palette)
+    {
+        this.palette = palette;
+    }
+    
+    public void run(boolean verbose) throws IOException
+    {
+        SC2Map map = loadMap(input);
+        int width = map.getTerrainMap().getWidth();
+        int height = map.getTerrainMap().getHeight();
+        
+        output.mkdirs();
+        File scratchFile = new File(output, "sc2mc.scratch");
+        final Journal journal = Journal.openJournal(new File(output, "sc2mc.journal"), input);
+        
+        if(journal.isFinished())
+        {
+            log("Conversion already finished");
+            return;
+        }
+        
+        // a fresh start must not pick up blocks from an abandoned scratch volume
+        if(journal.getLastRow() < 0)
+            scratchFile.delete();
+        
+        // the scratch volume holds everything up to the last checkpoint, checkpoints 
+        // without it are worthless and the conversion starts over
+        final MappedCanvas scratch = openScratch(scratchFile, width, height);
+        if(journal.getLastRow() >= 0 && !scratch.isReopened())
+        {
+            log("No usable scratch volume for the checkpoints in the journal, starting over");
+            journal.reset();
+        }
+        
+        try
+        {
+            final int startRow = journal.getLastRow() + 1;
+            final int endRow = height;
+            
+            // the palette is part of the settings, so it is set before the journal checks them
+            Converter converter = new Converter(map, scratch);
+            converter.setPalette(palette);
+            journal.checkSettings(converter);
+            
+            if(startRow > 0 && verbose)
+                log("Resuming from tile row " + startRow);
+            
+            if(startRow < endRow)
+            {
+                converter.addListener(new ConversionListener()
+                {
+                    public void tileRowCompleted(Converter converter, int y0)
+                    {
+                        if((y0 + 1 - startRow) % checkpointRows != 0 && y0 != endRow - 1)
+                            return;
+                        
+                        scratch.flush();
+                        
+                        try
+                        {
+                            journal.recordRow(y0);
+                        }
+                        catch(IOException e)
+                        {
+                            throw new RuntimeException("Unable to write checkpoint", e);
+                        }
+                    }
+                });
+                
+                converter.convert(0, startRow, width, endRow, verbose);
+            }
+            
+            if(verbose)
+                log("Writing " + scratch.getPageCount() + " sections...");
+            
+            RegionWriter writer = new RegionWriter(output);
+            writer.write(scratch);
+            writer.close();
+            journal.recordFinished();
+        }
+        finally
+        {
+            scratch.close();
+        }
+        
+        scratchFile.delete();
+    }
+    
+    protected static MappedCanvas openScratch(File scratchFile, int width, int height) throws IOException
+    {
+        int scale = Converter.getGridScale();
+        int xMin = Converter.getDefaultOrigin(width) - 16;
+        int zMin = Converter.getDefaultOrigin(height) - 16;
+        
+        try
+        {
+            return MappedCanvas.createCanvas(scratchFile, xMin, zMin, width * scale + 32, height * scale + 32);
+        }
+        catch(IOException e)
+        {
+            // a scratch volume from another format or map size can't be resumed either
+            log(e.getMessage() + ", starting over");
+            scratchFile.delete();
+            return MappedCanvas.createCanvas(scratchFile, xMin, zMin, width * scale + 32, height * scale + 32);
+        }
+    }
+    
+    protected static SC2Map loadMap(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        
+        try
+        {
+            return SC2Map.loadMap(in);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    protected static void log(String str)
+    {
+        System.out.println(str);
+    }
+    
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length < 2)
+        {
+            System.out.println("Usage: ResumableConversion <input.sc2> <output world> [checkpoint rows] [theme file]");
+            return;
+        }
+        
+        int checkpointRows = args.length > 2 ? Integer.parseInt(args[2]) : default_checkpoint_rows;
+        Palette palette = args.length > 3 ? Theme.loadTheme(new File(args[3])).compile() : Palette.getDefaultPalette();
+        ResumableConversion conversion = new ResumableConversion(new File(args[0]), new File(args[1]), checkpointRows);
+        conversion.setPalette(palette);
+        
+        System.out.println("Reticulating mines...");
+        
+        conversion.run(true);
+        
+        System.out.println("Finished!");
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import rakama.sc2mc.Converter;
+import rakama.sc2mc.canvas.DiscardCanvas;
+import rakama.sc2mc.canvas.MappedCanvas;
+import rakama.sc2mc.export.RegionWriter;
+import rakama.sc2mc.map.SC2Map;
+import rakama.sc2mc.palette.Palette;
+import rakama.sc2mc.palette.Theme;
+import rakama.sc2mc.synth.MapGenerator;
+
+public class ConversionServer
+{
+    public static final int default_port = 7420;
+    public static final int default_queue_size = 64;
+    public static final int default_timeout = 600;
+    public static final String warmup_preset = "city";
+    public static final int warmup_size = 64;
+
+    protected ServerSocket socket;
+    protected ThreadPoolExecutor jobs;
+    protected ExecutorService connections;
+    protected Set<String> activeOutputs;
+    protected volatile boolean running;
+    protected int timeout;
+    protected Palette palette;
+    
+    public ConversionServer(int port, int concurrency, int queueSize) throws IOException
+    {
+        this.socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.jobs = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.SECONDS, 
+                new ArrayBlockingQueue<Runnable>(queueSize));
+        this.jobs.prestartAllCoreThreads();
+        this.connections = Executors.newCachedThreadPool();
+        this.activeOutputs = Collections.synchronizedSet(new HashSet<String>());
+        this.timeout = default_timeout;
+        this.palette = Palette.getDefaultPalette();
+    }
+    
+    public void setTimeout(int seconds)
+    {
+        this.timeout = seconds;
+    }
+    
+    // every job is converted with the same palette
+    public void setPalette(Palette palette)
+    {
+        this.palette = palette;
+    }
+    
+    public void warmUp() throws IOException
+    {
+        // one small city touches every pass, enough to get the hot paths compiled
+        MapGenerator generator = MapGenerator.getPreset(warmup_preset);
+        generator.setSize(warmup_size);
+        
+        SC2Map map = SC2Map.loadMap(new ByteArrayInputStream(generator.generate()));
+        Converter converter = new Converter(map, new DiscardCanvas());
+        converter.setPalette(palette);
+        converter.convert(false);
+    }
+    
+    public void run() throws IOException
+    {
+        running = true;
+        
+        while(running)
+        {
+            final Socket client;
+            
+            try
+            {
+                client = socket.accept();
+            }
+            catch(IOException e)
+            {
+                if(!running)
+                    break;
+                
+                throw e;
+            }
+            
+            connections.execute(new Runnable()
+            {
+                public void run()
+                {
+                    handleConnection(client);
+                }
+            });
+        }
+    }
+    
+    public void shutdown()
+    {
+        running = false;
+        
+        try
+        {
+            socket.close();
+        }
+        catch(IOException e)
+        {
+            log("Error closing socket: " + e.getMessage());
+        }
+        
+        jobs.shutdown();
+        connections.shutdownNow();
+    }
+    
+    protected void handleConnection(Socket client)
+    {
+        try
+        {
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+            PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+            
+            // CONVERT <input>|<output>, STATUS, QUIT or SHUTDOWN
+            String line = in.readLine();
+            while(line != null)
+            {
+                line = line.trim();
+                
+                if(line.startsWith("CONVERT "))
+                {
+                    String[] paths = line.substring(8).split("\\|");
+                    if(paths.length != 2)
+                        out.println("ERROR expected CONVERT <input>|<output>");
+                    else
+                        out.println(convert(new File(paths[0].trim()), new File(paths[1].trim())));
+                }
+                else if(line.equals("STATUS"))
+                {
+                    out.println("OK active=" + jobs.getActiveCount() + " queued=" + jobs.getQueue().size() 
+                            + " completed=" + jobs.getCompletedTaskCount());
+                }
+                else if(line.equals("QUIT"))
+                {
+                    break;
+                }
+                else if(line.equals("SHUTDOWN"))
+                {
+                    out.println("OK");
+                    shutdown();
+                    break;
+                }
+                else if(line.length() > 0)
+                {
+                    out.println("ERROR unknown command '" + line + "'");
+                }
+                
+                line = in.readLine();
+            }
+        }
+        catch(IOException e)
+        {
+            log("Connection error: " + e.getMessage());
+        }
+        finally
+        {
+            try
+            {
+                client.close();
+            }
+            catch(IOException e)
+            {
+                log("Error closing connection: " + e.getMessage());
+            }
+        }
+    }
+    
+    protected String convert(final File input, final File output)
+    {
+        final String key = output.getAbsolutePath();
+        if(!activeOutputs.add(key))
+            return "ERROR output " + output + " is already being converted";
+        
+        // the output stays reserved until the job itself is done with it
+        FutureTask<Long> job = new FutureTask<Long>(new Callable<Long>()
+        {
+            public Long call() throws IOException
+            {
+                try
+                {
+                    long start = System.nanoTime();
+                    convertMap(input, output, palette);
+                    return (System.nanoTime() - start) / 1000000;
+                }
+                finally
+                {
+                    activeOutputs.remove(key);
+                }
+            }
+        });
+        
+        try
+        {
+            jobs.execute(job);
+        }
+        catch(RejectedExecutionException e)
+        {
+            activeOutputs.remove(key);
+            return "ERROR job queue is full";
+        }
+        
+        try
+        {
+            return "OK " + job.get(timeout, TimeUnit.SECONDS) + " ms";
+        }
+        catch(ExecutionException e)
+        {
+            return "ERROR " + e.getCause().toString();
+        }
+        catch(TimeoutException e)
+        {
+            // a queued job is dropped, a running one can't be stopped and is left to finish
+            if(jobs.remove(job))
+                activeOutputs.remove(key);
+            
+            return "ERROR conversion took longer than " + timeout + " s";
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return "ERROR interrupted";
+        }
+    }
+    
+    protected static void convertMap(File input, File output, Palette palette) throws IOException
+    {
+        InputStream in = new FileInputStream(input);
+        SC2Map map;
+        
+        try
+        {
+            map = SC2Map.loadMap(in);
+        }
+        finally
+        {
+            in.close();
+        }
+        
+        // chunks are lit as they are written, so the map is staged in a scratch canvas
+        int width = map.getTerrainMap().getWidth();
+        int height = map.getTerrainMap().getHeight();
+        int scale = Converter.getGridScale();
+        
+        output.mkdirs();
+        File scratchFile = new File(output, "sc2mc.scratch");
+        scratchFile.delete();
+        MappedCanvas scratch = MappedCanvas.createCanvas(scratchFile, 
+                Converter.getDefaultOrigin(width) - 16, Converter.getDefaultOrigin(height) - 16, 
+                width * scale + 32, height * scale + 32);
+        
+        try
+        {
+            Converter converter = new Converter(map, scratch);
+            converter.setPalette(palette);
+            converter.convert(false);
+            
+            RegionWriter writer = new RegionWriter(output);
+            writer.write(scratch);
+            writer.close();
+        }
+        finally
+        {
+            scratch.close();
+            scratchFile.delete();
+        }
+    }
+    
+    protected static void log(String str)
+    {
+        System.out.println(str);
+    }
+    
+    public static void main(String[] args) throws IOException
+    {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : default_port;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int timeout = args.length > 2 ? Integer.parseInt(args[2]) : default_timeout;
+        Palette palette = args.length > 3 ? Theme.loadTheme(new File(args[3])).compile() : Palette.getDefaultPalette();
+        
+        ConversionServer server = new ConversionServer(port, concurrency, default_queue_size);
+        server.setTimeout(timeout);
+        server.setPalette(palette);
+        
+        System.out.println("Warming up...");
+        
+        server.warmUp();
+        
+        System.out.println("Listening on port " + port + " with " + concurrency + " workers");
+        
+        server.run();
+        
+        System.out.println("Finished!");
+    }
+}
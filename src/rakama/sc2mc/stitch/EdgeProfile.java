@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.stitch;
+
+public class EdgeProfile
+{
+    protected final int[] north, south, west, east;
+    protected final int[] northWater, southWater, westWater, eastWater;
+    
+    protected EdgeProfile(int span)
+    {
+        north = new int[span];
+        south = new int[span];
+        west = new int[span];
+        east = new int[span];
+        northWater = new int[span];
+        southWater = new int[span];
+        westWater = new int[span];
+        eastWater = new int[span];
+    }
+    
+    public int getNorth(int x)
+    {
+        return north[x];
+    }
+    
+    public int getSouth(int x)
+    {
+        return south[x];
+    }
+    
+    public int getWest(int y)
+    {
+        return west[y];
+    }
+    
+    public int getEast(int y)
+    {
+        return east[y];
+    }
+    
+    public int getNorthWater(int x)
+    {
+        return northWater[x];
+    }
+    
+    public int getSouthWater(int x)
+    {
+        return southWater[x];
+    }
+    
+    public int getWestWater(int y)
+    {
+        return westWater[y];
+    }
+    
+    public int getEastWater(int y)
+    {
+        return eastWater[y];
+    }
+}
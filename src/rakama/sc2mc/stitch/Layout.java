@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.stitch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+public class Layout
+{
+    protected List<Entry> entries;
+    
+    public Layout()
+    {
+        this.entries = new ArrayList<Entry>();
+    }
+    
+    public static Layout loadLayout(File file) throws IOException
+    {
+        Layout layout = new Layout();
+        File base = file.getParentFile();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+
+        try
+        {
+            String line = in.readLine();
+            while(line != null)
+            {
+                line = line.trim();
+                
+                // <column> <row> <path to .SC2 file>
+                if(line.length() > 0 && !line.startsWith("#"))
+                {
+                    String[] tokens = line.split("\\s+", 3);
+                    if(tokens.length < 3)
+                        throw new IOException("Invalid layout entry '" + line + "'");
+
+                    File map = new File(tokens[2]);
+                    if(!map.isAbsolute())
+                        map = new File(base, tokens[2]);
+
+                    try
+                    {
+                        layout.addEntry(Integer.parseInt(tokens[0]), Integer.parseInt(tokens[1]), map);
+                    }
+                    catch(NumberFormatException e)
+                    {
+                        throw new IOException("Invalid layout entry '" + line + "'");
+                    }
+                }
+                
+                line = in.readLine();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        
+        return layout;
+    }
+    
+    public void addEntry(int column, int row, File file)
+    {
+        if(getEntry(column, row) != null)
+            throw new IllegalArgumentException("Duplicate layout entry (" + column + ", " + row + ")");
+
+        entries.add(new Entry(column, row, file));
+    }
+    
+    public Entry getEntry(int column, int row)
+    {
+        for(Entry entry : entries)
+            if(entry.column == column && entry.row == row)
+                return entry;
+        
+        return null;
+    }
+    
+    public List<Entry> getEntries()
+    {
+        List<Entry> sorted = new ArrayList<Entry>(entries);
+        Collections.sort(sorted, new Comparator<Entry>()
+        {
+            public int compare(Entry a, Entry b)
+            {
+                if(a.row != b.row)
+                    return a.row < b.row ? -1 : 1;
+                else if(a.column != b.column)
+                    return a.column < b.column ? -1 : 1;
+                else
+                    return 0;
+            }
+        });
+        
+        return sorted;
+    }
+    
+    public int size()
+    {
+        return entries.size();
+    }
+    
+    public static class Entry
+    {
+        protected final int column, row;
+        protected final File file;
+        
+        protected Entry(int column, int row, File file)
+        {
+            this.column = column;
+            this.row = row;
+            this.file = file;
+        }
+        
+        public int getColumn()
+        {
+            return column;
+        }
+        
+        public int getRow()
+        {
+            return row;
+        }
+        
+        public File getFile()
+        {
+            return file;
+        }
+    }
+}
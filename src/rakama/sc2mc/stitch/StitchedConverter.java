@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.stitch;
+
+import rakama.sc2mc.Converter;
+import rakama.sc2mc.canvas.Canvas;
+import rakama.sc2mc.map.SC2Map;
+
+public class StitchedConverter extends Converter
+{
+    protected static final int blend_width = 48;
+    
+    protected EdgeProfile north, south, west, east;
+    
+    public StitchedConverter(SC2Map map, Canvas canvas, int xOrigin, int yOrigin)
+    {
+        super(map, canvas, xOrigin, yOrigin);
+    }
+    
+    public int getSpan()
+    {
+        return width * grid_scale;
+    }
+    
+    public void setNeighbors(EdgeProfile north, EdgeProfile south, EdgeProfile west, EdgeProfile east)
+    {
+        this.north = north;
+        this.south = south;
+        this.west = west;
+        this.east = east;
+    }
+    
+    @Override
+    protected Converter createFork(Canvas canvas)
+    {
+        StitchedConverter fork = new StitchedConverter(map, canvas, xOrigin, yOrigin);
+        fork.setNeighbors(north, south, west, east);
+        return fork;
+    }
+    
+    public EdgeProfile getEdgeProfile()
+    {
+        int span = getSpan();
+        EdgeProfile profile = new EdgeProfile(span);
+        
+        for(int i=0; i<span; i++)
+        {
+            profile.north[i] = super.getScaledAltitude(xOrigin + i, yOrigin);
+            profile.south[i] = super.getScaledAltitude(xOrigin + i, yOrigin + span - 1);
+            profile.west[i] = super.getScaledAltitude(xOrigin, yOrigin + i);
+            profile.east[i] = super.getScaledAltitude(xOrigin + span - 1, yOrigin + i);
+            profile.northWater[i] = super.getScaledWaterAltitude(xOrigin + i, yOrigin);
+            profile.southWater[i] = super.getScaledWaterAltitude(xOrigin + i, yOrigin + span - 1);
+            profile.westWater[i] = super.getScaledWaterAltitude(xOrigin, yOrigin + i);
+            profile.eastWater[i] = super.getScaledWaterAltitude(xOrigin + span - 1, yOrigin + i);
+        }
+        
+        return profile;
+    }
+    
+    @Override
+    protected int getScaledAltitude(int x, int y)
+    {
+        return blendSeams(x, y, super.getScaledAltitude(x, y));
+    }
+
+    // water levels meet at the seam like the ground does, otherwise a lake 
+    // ends in a wall where it borders a city with lower water
+    @Override
+    protected int getScaledWaterAltitude(int x, int y)
+    {
+        return blendWater(x, y, super.getScaledWaterAltitude(x, y));
+    }
+
+    @Override
+    protected void computeTileAltitudes(int x0, int y0, int[] out)
+    {
+        super.computeTileAltitudes(x0, y0, out);
+        
+        int xStart = getScaledCoordinate(x0, xOrigin);
+        int yStart = getScaledCoordinate(y0, yOrigin);
+        
+        for(int i=0; i<out.length; i++)
+            out[i] = blendSeams(xStart + (i % grid_scale), yStart + (i / grid_scale), out[i]);
+    }
+    
+    protected int blendSeams(int x, int y, int altitude)
+    {
+        if(north == null && south == null && west == null && east == null)
+            return altitude;
+        
+        int span = getSpan();
+        int dx = x - xOrigin;
+        int dy = y - yOrigin;        
+        float blended = altitude;
+
+        // meet each neighbor halfway along the shared edge
+        if(west != null && dx < blend_width)
+            blended = blend(blended, super.getScaledAltitude(xOrigin, y), west.east[dy], dx);
+        
+        if(east != null && span - 1 - dx < blend_width)
+            blended = blend(blended, super.getScaledAltitude(xOrigin + span - 1, y), east.west[dy], span - 1 - dx);
+        
+        if(north != null && dy < blend_width)
+            blended = blend(blended, super.getScaledAltitude(x, yOrigin), north.south[dx], dy);
+        
+        if(south != null && span - 1 - dy < blend_width)
+            blended = blend(blended, super.getScaledAltitude(x, yOrigin + span - 1), south.north[dx], span - 1 - dy);
+        
+        return Math.round(blended);
+    }
+    
+    protected int blendWater(int x, int y, int water)
+    {
+        if(north == null && south == null && west == null && east == null)
+            return water;
+        
+        int span = getSpan();
+        int dx = x - xOrigin;
+        int dy = y - yOrigin;        
+        float blended = water;
+
+        if(west != null && dx < blend_width)
+            blended = blend(blended, super.getScaledWaterAltitude(xOrigin, y), west.eastWater[dy], dx);
+        
+        if(east != null && span - 1 - dx < blend_width)
+            blended = blend(blended, super.getScaledWaterAltitude(xOrigin + span - 1, y), east.westWater[dy], span - 1 - dx);
+        
+        if(north != null && dy < blend_width)
+            blended = blend(blended, super.getScaledWaterAltitude(x, yOrigin), north.southWater[dx], dy);
+        
+        if(south != null && span - 1 - dy < blend_width)
+            blended = blend(blended, super.getScaledWaterAltitude(x, yOrigin + span - 1), south.northWater[dx], span - 1 - dy);
+        
+        return Math.round(blended);
+    }
+    
+    protected static float blend(float altitude, int edge, int neighborEdge, int distance)
+    {
+        float seam = (edge + neighborEdge) * 0.5f;
+        float weight = (float)distance / blend_width;        
+        weight = weight * weight * (3 - 2 * weight);        
+        return seam + (altitude - seam) * weight;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.stitch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import rakama.sc2mc.Converter;
+import rakama.sc2mc.canvas.MappedCanvas;
+import rakama.sc2mc.export.RegionWriter;
+import rakama.sc2mc.map.SC2Map;
+import rakama.sc2mc.palette.Palette;
+import rakama.sc2mc.palette.Theme;
+
+public class Stitcher
+{
+    public static final int cell_size = 128;
+    
+    // one chunk of margin around a row for trees that overhang its cells
+    protected static final int margin = 16;
+    
+    protected Layout layout;
+    protected File output;
+    protected File[] scratchFiles;
+    protected Map<Long, EdgeProfile> profiles;
+    protected Palette palette;
+    protected RegionWriter writer;
+    
+    // block bounds of every row, the layout's columns plus the margin
+    protected int xMin, width;
+    
+    public Stitcher(Layout layout, File output)
+    {
+        this.layout = layout;
+        this.output = output;
+        this.scratchFiles = new File[]{new File(output, "sc2mc.scratch"), new File(output, "sc2mc.scratch.next")};
+        this.profiles = new HashMap<Long, EdgeProfile>();
+        this.palette = Palette.getDefaultPalette();
+    }
+    
+    public void setPalette(Palette palette)
+    {
+        this.palette = palette;
+    }
+    
+    public void stitch(boolean verbose) throws IOException
+    {
+        List<Layout.Entry> entries = layout.getEntries();
+        if(entries.isEmpty())
+            return;
+        
+        int span = cell_size * Converter.getGridScale();
+        int columnMin = Integer.MAX_VALUE;
+        int columnMax = Integer.MIN_VALUE;
+        for(Layout.Entry entry : entries)
+        {
+            columnMin = Math.min(columnMin, entry.getColumn());
+            columnMax = Math.max(columnMax, entry.getColumn());
+        }
+        
+        xMin = columnMin * span - margin;
+        width = (columnMax - columnMin + 1) * span + margin * 2;
+        output.mkdirs();
+        writer = new RegionWriter(output);
+        
+        // rows are rendered one at a time into a scratch canvas, and everything but the 
+        // two chunk rows the next row still spills into is written out as soon as the 
+        // row is done. Neither the heap nor the scratch grows with the number of rows.
+        MappedCanvas scratch = null, previous = null;
+        File scratchFile = null, previousFile = null;
+        int scratchRow = 0;
+        int count = 0;
+        int index = 0;
+        
+        try
+        {
+            while(index < entries.size())
+            {
+                int row = entries.get(index).getRow();
+                
+                // two scratch files take turns, the previous row is still open while the next one starts
+                previous = scratch;
+                previousFile = scratchFile;
+                scratch = null;
+                scratchFile = scratchFiles[previousFile == scratchFiles[0] ? 1 : 0];
+                scratchFile.delete();
+                scratch = MappedCanvas.createCanvas(scratchFile, xMin, row * span - margin, width, span + margin * 2);
+                
+                if(previous != null)
+                {
+                    // the last rows of the previous row are only final if nothing will spill into them
+                    if(scratchRow == row - 1)
+                        carryRows(previous, scratch, row * span - margin, row * span + margin);
+                    else
+                        publishRows(previous, (scratchRow + 1) * span - margin, (scratchRow + 1) * span + margin);
+                    
+                    previous.close();
+                    previousFile.delete();
+                    previous = null;
+                }
+                
+                for(; index<entries.size() && entries.get(index).getRow() == row; index++)
+                {
+                    Layout.Entry entry = entries.get(index);
+                    if(verbose)
+                        log("Stitching " + entry.getFile().getName() + " at (" + entry.getColumn() + ", " + row 
+                                + ") [" + (++count) + "/" + entries.size() + "]");
+                    
+                    stitchCell(scratch, entry, span, verbose);
+                }
+                
+                publishRows(scratch, row * span - margin, (row + 1) * span - margin);
+                
+                // the row above was the last to use the profiles of the row before it
+                dropProfiles(row - 1);
+                scratchRow = row;
+            }
+            
+            publishRows(scratch, (scratchRow + 1) * span - margin, (scratchRow + 1) * span + margin);
+            writer.close();
+        }
+        finally
+        {
+            if(previous != null)
+            {
+                previous.close();
+                previousFile.delete();
+            }
+            
+            if(scratch != null)
+            {
+                scratch.close();
+                scratchFile.delete();
+            }
+            
+            profiles.clear();
+        }
+    }
+    
+    protected void stitchCell(MappedCanvas scratch, Layout.Entry entry, int span, boolean verbose) throws IOException
+    {
+        int column = entry.getColumn();
+        int row = entry.getRow();
+        
+        // neighbors are looked up before the map itself is loaded, so only one map is held at a time
+        EdgeProfile north = getProfile(column, row - 1);
+        EdgeProfile south = getProfile(column, row + 1);
+        EdgeProfile west = getProfile(column - 1, row);
+        EdgeProfile east = getProfile(column + 1, row);
+        
+        SC2Map map = loadMap(entry.getFile(), false);
+        
+        StitchedConverter converter = new StitchedConverter(map, scratch, column * span, row * span);
+        converter.setNeighbors(north, south, west, east);
+        converter.setPalette(palette);
+        converter.convert(verbose);
+    }
+    
+    protected void carryRows(MappedCanvas from, MappedCanvas to, int zStart, int zEnd)
+    {
+        for(int cz=zStart >> 4; cz<zEnd >> 4; cz++)
+            for(int cx=from.getChunkXMin(); cx<from.getChunkXMin() + from.getChunksX(); cx++)
+                from.writeChunk(to, cx, cz);
+    }
+    
+    protected void publishRows(MappedCanvas scratch, int zStart, int zEnd) throws IOException
+    {
+        // flushing after every row keeps the open regions from growing with the layout
+        for(int cz=zStart >> 4; cz<zEnd >> 4; cz++)
+            for(int cx=scratch.getChunkXMin(); cx<scratch.getChunkXMin() + scratch.getChunksX(); cx++)
+                writer.writeChunk(scratch, cx, cz);
+        
+        writer.flush();
+    }
+    
+    protected EdgeProfile getProfile(int column, int row) throws IOException
+    {
+        Long key = toKey(column, row);
+        if(profiles.containsKey(key))
+            return profiles.get(key);
+        
+        Layout.Entry entry = layout.getEntry(column, row);
+        EdgeProfile profile = null;
+        
+        // profiles only need altitudes, so the structures are never parsed for them
+        if(entry != null)
+            profile = new StitchedConverter(loadMap(entry.getFile(), true), null, 0, 0).getEdgeProfile();
+        
+        profiles.put(key, profile);
+        return profile;
+    }
+    
+    protected void dropProfiles(int row)
+    {
+        // a row's profiles are used by the row itself and the rows beside it, so at 
+        // most three rows of profiles are held at once
+        Iterator<Long> iter = profiles.keySet().iterator();
+        while(iter.hasNext())
+            if(toRow(iter.next()) <= row)
+                iter.remove();
+    }
+    
+    protected static SC2Map loadMap(File file, boolean terrainOnly) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        SC2Map map;
+        
+        try
+        {
+            map = terrainOnly ? SC2Map.loadTerrain(in) : SC2Map.loadMap(in);
+        }
+        finally
+        {
+            in.close();
+        }
+        
+        // every layout cell has to line up with its neighbors
+        if(map.getTerrainMap().getWidth() != cell_size || map.getTerrainMap().getHeight() != cell_size)
+            throw new IOException(file.getName() + " is not " + cell_size + " x " + cell_size + " tiles");
+        
+        return map;
+    }
+    
+    protected static long toKey(int column, int row)
+    {
+        return ((long)row << 32) | (column & 0xFFFFFFFFL);
+    }
+    
+    protected static int toRow(long key)
+    {
+        return (int)(key >> 32);
+    }
+    
+    protected static int toColumn(long key)
+    {
+        return (int)key;
+    }
+    
+    protected static void log(String str)
+    {
+        System.out.println(str);
+    }
+    
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length < 2)
+        {
+            System.out.println("Usage: Stitcher <layout file> <output world> [theme file]");
+            return;
+        }
+        
+        Layout layout = Layout.loadLayout(new File(args[0]));
+        Palette palette = args.length > 2 ? Theme.loadTheme(new File(args[2])).compile() : Palette.getDefaultPalette();
+        
+        System.out.println("Reticulating mines...");
+
+        Stitcher stitcher = new Stitcher(layout, new File(args[1]));
+        stitcher.setPalette(palette);
+        stitcher.stitch(true);
+        
+        System.out.println("Finished!");  
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.synth;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import rakama.sc2mc.io.SegOutputStream;
+
+public class MapGenerator
+{
+    public static final String[] presets = {"flat", "ocean", "hills", "city", "oversized"};
+    
+    protected static final int max_altitude = 15;
+    
+    protected int size;
+    protected long seed;
+    protected double roughness;
+    protected double waterShare, canalShare;
+    protected double treeDensity;
+    protected double roadCoverage, highwayCoverage, railCoverage;
+    protected double subwayCoverage, pipeCoverage;
+    protected double compressibility;
+    
+    public MapGenerator()
+    {
+        this.size = 128;
+        this.compressibility = 0.5;
+    }
+    
+    public static MapGenerator getPreset(String name)
+    {
+        MapGenerator gen = new MapGenerator();
+        gen.setSeed(name.hashCode());
+        
+        if(name.equals("flat"))
+            return gen;
+        else if(name.equals("ocean"))
+            gen.setWaterShare(1);
+        else if(name.equals("hills"))
+        {
+            gen.setRoughness(0.6);
+            gen.setWaterShare(0.2);
+            gen.setTreeDensity(0.4);
+        }
+        else if(name.equals("city"))
+        {
+            gen.setRoughness(0.3);
+            gen.setWaterShare(0.15);
+            gen.setCanalShare(0.02);
+            gen.setTreeDensity(0.15);
+            gen.setRoadCoverage(0.25);
+            gen.setHighwayCoverage(0.05);
+            gen.setRailCoverage(0.05);
+            gen.setSubwayCoverage(0.04);
+            gen.setPipeCoverage(0.1);
+        }
+        else if(name.equals("oversized"))
+        {
+            gen.setSize(256);
+            gen.setRoughness(0.5);
+            gen.setWaterShare(0.25);
+            gen.setTreeDensity(0.3);
+            gen.setRoadCoverage(0.1);
+            gen.setHighwayCoverage(0.03);
+        }
+        else
+            throw new IllegalArgumentException("Unknown preset '" + name + "'");
+        
+        return gen;
+    }
+    
+    public void setSize(int size)
+    {
+        if(size < 1 || size > 4096)
+            throw new IllegalArgumentException("Invalid map size " + size);
+        
+        this.size = size;
+    }
+    
+    public void setSeed(long seed)
+    {
+        this.seed = seed;
+    }
+    
+    public void setRoughness(double roughness)
+    {
+        this.roughness = clamp(roughness);
+    }
+    
+    public void setWaterShare(double waterShare)
+    {
+        this.waterShare = clamp(waterShare);
+    }
+    
+    public void setCanalShare(double canalShare)
+    {
+        this.canalShare = clamp(canalShare);
+    }
+    
+    public void setTreeDensity(double treeDensity)
+    {
+        this.treeDensity = clamp(treeDensity);
+    }
+    
+    public void setRoadCoverage(double roadCoverage)
+    {
+        this.roadCoverage = clamp(roadCoverage);
+    }
+    
+    public void setHighwayCoverage(double highwayCoverage)
+    {
+        this.highwayCoverage = clamp(highwayCoverage);
+    }
+    
+    public void setRailCoverage(double railCoverage)
+    {
+        this.railCoverage = clamp(railCoverage);
+    }
+    
+    public void setSubwayCoverage(double subwayCoverage)
+    {
+        this.subwayCoverage = clamp(subwayCoverage);
+    }
+    
+    public void setPipeCoverage(double pipeCoverage)
+    {
+        this.pipeCoverage = clamp(pipeCoverage);
+    }
+    
+    public void setCompressibility(double compressibility)
+    {
+        this.compressibility = clamp(compressibility);
+    }
+    
+    public byte[] generate() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        generate(out);
+        return out.toByteArray();
+    }
+    
+    public void generate(File file) throws IOException
+    {
+        OutputStream out = new FileOutputStream(file);
+        
+        try
+        {
+            generate(out);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    public void generate(OutputStream out) throws IOException
+    {
+        Random rand = new Random(seed);        
+        int[] altitude = generateAltitude(rand);
+        
+        // water fills everything below the level that floods the requested share
+        int waterLevel = getWaterLevel(altitude);
+        
+        byte[] altm = new byte[size * size * 2];
+        byte[] xter = new byte[size * size];
+        byte[] xbld = new byte[size * size];
+        boolean[] land = new boolean[size * size];
+        
+        for(int y=0; y<size; y++)
+        {
+            for(int x=0; x<size; x++)
+            {
+                int i = toIndex(x, y);
+                boolean flooded = altitude[i] < waterLevel;
+                int slope = getSlopeCode(altitude, x, y);
+                
+                land[i] = !flooded;
+                xter[i] = (byte)(flooded ? 0x10 | slope : slope);
+                setAltitude(altm, i, altitude[i], flooded ? waterLevel : 0);
+            }
+        }
+        
+        carveCanals(rand, altitude, altm, xter, land);
+        placeLines(rand, xbld, land, roadCoverage, 0x1D, true);
+        placeLines(rand, xbld, land, railCoverage, 0x2C, true);
+        placeLines(rand, xbld, null, highwayCoverage, 0x49, false);
+        plantTrees(rand, xbld, land);
+        
+        // subways and pipes share a layer, crossings get their own code
+        byte[] xund = new byte[size * size];
+        placeLines(rand, xund, null, subwayCoverage, 0x01, false);
+        placeCrossingLines(rand, xund, pipeCoverage, 0x10, 0x01, 0x1F);
+        
+        ByteArrayOutputStream segments = new ByteArrayOutputStream();
+        SegOutputStream segout = new SegOutputStream(segments);
+        segout.writeSegment("ALTM", altm);
+        segout.writeCompressedSegment("XTER", xter);
+        segout.writeCompressedSegment("XBLD", xbld);
+        
+        if(subwayCoverage > 0 || pipeCoverage > 0)
+            segout.writeCompressedSegment("XUND", xund);
+        
+        SegOutputStream fileout = new SegOutputStream(out);
+        fileout.writeString("FORM");
+        fileout.writeUInt32(segments.size() + 4);
+        fileout.writeString("SCDH");
+        segments.writeTo(out);
+    }
+    
+    protected int[] generateAltitude(Random rand)
+    {
+        int[] altitude = new int[size * size];
+        if(roughness == 0)
+        {
+            Arrays.fill(altitude, 4);
+            return altitude;
+        }
+        
+        // value noise, rougher maps use finer lattices
+        int cell = Math.max(2, (int)(32 * (1 - roughness)) + 2);
+        int lattice = size / cell + 2;
+        float[] values = new float[lattice * lattice];
+        for(int i=0; i<values.length; i++)
+            values[i] = rand.nextFloat();
+        
+        for(int y=0; y<size; y++)
+        {
+            for(int x=0; x<size; x++)
+            {
+                float fx = (float)x / cell;
+                float fy = (float)y / cell;
+                int lx = (int)fx;
+                int ly = (int)fy;
+                fx -= lx;
+                fy -= ly;
+                
+                float top = values[lx + ly * lattice] * (1 - fx) + values[lx + 1 + ly * lattice] * fx;
+                float bottom = values[lx + (ly + 1) * lattice] * (1 - fx) + values[lx + 1 + (ly + 1) * lattice] * fx;
+                float noise = top * (1 - fy) + bottom * fy;
+                
+                altitude[toIndex(x, y)] = Math.min(max_altitude, Math.round(noise * max_altitude * (float)roughness + 2));
+            }
+        }
+        
+        // neighboring tiles may only differ by one level
+        boolean changed = true;
+        while(changed)
+        {
+            changed = false;
+            for(int y=0; y<size; y++)
+            {
+                for(int x=0; x<size; x++)
+                {
+                    int i = toIndex(x, y);
+                    int limit = Math.min(Math.min(getAltitude(altitude, x - 1, y), getAltitude(altitude, x + 1, y)), 
+                            Math.min(getAltitude(altitude, x, y - 1), getAltitude(altitude, x, y + 1))) + 1;
+                    
+                    if(altitude[i] > limit)
+                    {
+                        altitude[i] = limit;
+                        changed = true;
+                    }
+                }
+            }
+        }
+        
+        return altitude;
+    }
+    
+    protected int getWaterLevel(int[] altitude)
+    {
+        if(waterShare == 0)
+            return 0;
+        
+        int[] sorted = altitude.clone();
+        Arrays.sort(sorted);
+        return Math.min(max_altitude, sorted[(int)(waterShare * (sorted.length - 1))] + 1);
+    }
+    
+    protected int getSlopeCode(int[] altitude, int x, int y)
+    {
+        int alt = altitude[toIndex(x, y)];
+        
+        // slopes rise towards a higher neighbor: north, east, south, west
+        if(getAltitude(altitude, x, y - 1) > alt)
+            return 0x01;
+        else if(getAltitude(altitude, x + 1, y) > alt)
+            return 0x02;
+        else if(getAltitude(altitude, x, y + 1) > alt)
+            return 0x03;
+        else if(getAltitude(altitude, x - 1, y) > alt)
+            return 0x04;
+        
+        return 0x00;
+    }
+    
+    protected void carveCanals(Random rand, int[] altitude, byte[] altm, byte[] xter, boolean[] land)
+    {
+        int target = (int)(canalShare * size * size);
+        int carved = 0;
+        int attempts = 0;
+        
+        // canals are short straight runs across flat land
+        while(carved < target && attempts++ < target * 16)
+        {
+            int x = rand.nextInt(size);
+            int y = rand.nextInt(size);
+            boolean horizontal = rand.nextBoolean();
+            int length = 4 + rand.nextInt(12);
+            
+            for(int j=0; j<length; j++, carved++)
+            {
+                int cx = horizontal ? x + j : x;
+                int cy = horizontal ? y : y + j;
+                if(cx >= size || cy >= size)
+                    break;
+
+                int i = toIndex(cx, cy);
+                if(!land[i] || (xter[i] & 0x0F) != 0)
+                    break;
+                
+                land[i] = false;
+                xter[i] = (byte)(horizontal ? 0x30 : 0x31);
+                setAltitude(altm, i, altitude[i], altitude[i]);
+            }
+        }
+    }
+    
+    protected void placeLines(Random rand, byte[] xbld, boolean[] land, double coverage, int code, boolean landOnly)
+    {
+        if(coverage == 0)
+            return;
+        
+        // a grid with this spacing covers roughly the requested share of tiles
+        int spacing = Math.max(2, (int)Math.round(2 / coverage));
+        int offset = rand.nextInt(spacing);
+        
+        for(int y=0; y<size; y++)
+        {
+            for(int x=0; x<size; x++)
+            {
+                if((x + offset) % spacing != 0 && (y + offset) % spacing != 0)
+                    continue;
+                
+                int i = toIndex(x, y);
+                if(xbld[i] != 0 || (landOnly && !land[i]))
+                    continue;
+                
+                xbld[i] = (byte)code;
+            }
+        }
+    }
+    
+    protected void placeCrossingLines(Random rand, byte[] layer, double coverage, int code, int crossed, int crossing)
+    {
+        if(coverage == 0)
+            return;
+        
+        int spacing = Math.max(2, (int)Math.round(2 / coverage));
+        int offset = rand.nextInt(spacing);
+        
+        for(int y=0; y<size; y++)
+        {
+            for(int x=0; x<size; x++)
+            {
+                if((x + offset) % spacing != 0 && (y + offset) % spacing != 0)
+                    continue;
+                
+                int i = toIndex(x, y);
+                if(layer[i] == 0)
+                    layer[i] = (byte)code;
+                else if(layer[i] == crossed)
+                    layer[i] = (byte)crossing;
+            }
+        }
+    }
+    
+    protected void plantTrees(Random rand, byte[] xbld, boolean[] land)
+    {
+        if(treeDensity == 0)
+            return;
+        
+        // incompressible maps change tree density from one tile to the next
+        int previous = 0;
+        for(int i=0; i<xbld.length; i++)
+        {
+            if(xbld[i] != 0 || !land[i] || rand.nextDouble() >= treeDensity)
+                continue;
+
+            int code = previous;
+            if(code == 0 || rand.nextDouble() >= compressibility)
+                code = 0x06 + rand.nextInt(7);
+            
+            xbld[i] = (byte)code;
+            previous = code;
+        }
+    }
+    
+    protected int getAltitude(int[] altitude, int x, int y)
+    {
+        if(x < 0 || x >= size || y < 0 || y >= size)
+            return Integer.MAX_VALUE - 1;
+        
+        return altitude[toIndex(x, y)];
+    }
+    
+    protected int toIndex(int x, int y)
+    {
+        return (size - 1 - x) + y * size;
+    }
+    
+    protected static void setAltitude(byte[] altm, int index, int terrain, int water)
+    {
+        int val = (water << 5) | terrain;
+        altm[index * 2] = (byte)(val >> 8);
+        altm[index * 2 + 1] = (byte)val;
+    }
+    
+    protected static double clamp(double val)
+    {
+        return Math.max(0, Math.min(1, val));
+    }
+    
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length < 1)
+        {
+            System.out.println("Usage: MapGenerator <output.sc2> [preset] [size=..] [seed=..] [roughness=..] [water=..] "
+                    + "[canals=..] [trees=..] [roads=..] [highways=..] [rails=..] [subways=..] [pipes=..] [compressibility=..]");
+            return;
+        }
+        
+        MapGenerator gen = new MapGenerator();
+        
+        for(int i=1; i<args.length; i++)
+        {
+            int split = args[i].indexOf('=');
+            if(split < 0)
+            {
+                gen = getPreset(args[i]);
+                continue;
+            }
+            
+            String key = args[i].substring(0, split);
+            String value = args[i].substring(split + 1);
+            
+            if(key.equals("size"))
+                gen.setSize(Integer.parseInt(value));
+            else if(key.equals("seed"))
+                gen.setSeed(Long.parseLong(value));
+            else if(key.equals("roughness"))
+                gen.setRoughness(Double.parseDouble(value));
+            else if(key.equals("water"))
+                gen.setWaterShare(Double.parseDouble(value));
+            else if(key.equals("canals"))
+                gen.setCanalShare(Double.parseDouble(value));
+            else if(key.equals("trees"))
+                gen.setTreeDensity(Double.parseDouble(value));
+            else if(key.equals("roads"))
+                gen.setRoadCoverage(Double.parseDouble(value));
+            else if(key.equals("highways"))
+                gen.setHighwayCoverage(Double.parseDouble(value));
+            else if(key.equals("rails"))
+                gen.setRailCoverage(Double.parseDouble(value));
+            else if(key.equals("subways"))
+                gen.setSubwayCoverage(Double.parseDouble(value));
+            else if(key.equals("pipes"))
+                gen.setPipeCoverage(Double.parseDouble(value));
+            else if(key.equals("compressibility"))
+                gen.setCompressibility(Double.parseDouble(value));
+            else
+                throw new IllegalArgumentException("Unknown property '" + key + "'");
+        }
+        
+        gen.generate(new File(args[0]));
+        
+        System.out.println("Finished!");
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.watch;
+
+import rakama.sc2mc.map.SC2Map;
+import rakama.sc2mc.map.TerrainMap;
+
+public class MapDiff
+{
+    public static boolean isSameSize(SC2Map previous, SC2Map current)
+    {
+        TerrainMap a = previous.getTerrainMap();
+        TerrainMap b = current.getTerrainMap();
+        return a.getWidth() == b.getWidth() && a.getHeight() == b.getHeight();
+    }
+    
+    public static boolean[] getChangedTiles(SC2Map previous, SC2Map current)
+    {
+        if(!isSameSize(previous, current))
+            throw new IllegalArgumentException("Maps differ in size");
+        
+        int width = current.getTerrainMap().getWidth();
+        int height = current.getTerrainMap().getHeight();
+        boolean[] changed = new boolean[width * height];
+        
+        for(int y=0; y<height; y++)
+        {
+            for(int x=0; x<width; x++)
+            {
+                changed[x + y * width] = 
+                    !current.getTerrainMap().isSameTile(previous.getTerrainMap(), x, y)
+                    || !current.getStructureMap().isSameTile(previous.getStructureMap(), x, y)
+                    || !current.getUndergroundMap().isSameTile(previous.getUndergroundMap(), x, y);
+            }
+        }
+        
+        return changed;
+    }
+    
+    public static boolean[] dilate(boolean[] tiles, int width, int height, int radius)
+    {
+        boolean[] dilated = new boolean[tiles.length];
+        
+        for(int y=0; y<height; y++)
+        {
+            for(int x=0; x<width; x++)
+            {
+                if(!tiles[x + y * width])
+                    continue;
+                
+                for(int yi=Math.max(0, y - radius); yi<=Math.min(height - 1, y + radius); yi++)
+                    for(int xi=Math.max(0, x - radius); xi<=Math.min(width - 1, x + radius); xi++)
+                        dilated[xi + yi * width] = true;
+            }
+        }
+        
+        return dilated;
+    }
+    
+    public static int count(boolean[] tiles)
+    {
+        int count = 0;
+        for(int i=0; i<tiles.length; i++)
+            if(tiles[i])
+                count++;
+        
+        return count;
+    }
+    
+    public static int getHighestAltitude(SC2Map map, int x, int y)
+    {
+        TerrainMap terrain = map.getTerrainMap();
+        int max = 0;
+        
+        // smoothing blends each tile with its neighbors
+        for(int yi=Math.max(0, y - 1); yi<=Math.min(terrain.getHeight() - 1, y + 1); yi++)
+            for(int xi=Math.max(0, x - 1); xi<=Math.min(terrain.getWidth() - 1, x + 1); xi++)
+                max = Math.max(max, Math.max(terrain.getTerrainAltitude(xi, yi), terrain.getWaterAltitude(xi, yi)));
+        
+        return max;
+    }
+}
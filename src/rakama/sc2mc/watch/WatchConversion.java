@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.sc2mc.watch;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import rakama.sc2mc.Converter;
+import rakama.sc2mc.canvas.MappedCanvas;
+import rakama.sc2mc.export.RegionWriter;
+import rakama.sc2mc.map.SC2Map;
+import rakama.sc2mc.palette.Palette;
+import rakama.sc2mc.palette.Theme;
+
+public class WatchConversion
+{
+    public static final long default_debounce_millis = 500;
+    
+    protected static final int max_load_attempts = 5;
+    protected static final int max_height = 256;
+    
+    // a tile's terrain reads the map up to two tiles away (canals look at x + 2, y + 1),
+    // and a tile writes leaves into its neighbors
+    protected static final int read_radius = 2;
+    protected static final int spill_radius = 1;
+    
+    protected File input, output;
+    protected long debounceMillis;
+    protected Palette palette;
+    
+    // the scratch canvas holds the converted snapshot, chunks are lit from it as they are written
+    protected File scratchFile;
+    protected MappedCanvas scratch;
+    protected RegionWriter writer;
+    protected SC2Map snapshot;
+    
+    public WatchConversion(File input, File output, long debounceMillis)
+    {
+        this.input = input.getAbsoluteFile();
+        this.output = output;
+        this.scratchFile = new File(output, "sc2mc.scratch");
+        this.debounceMillis = debounceMillis;
+        this.palette = Palette.getDefaultPalette();
+    }
+    
+    public void setPalette(Palette palette)
+    {
+        this.palette = palette;
+    }
+    
+    public void run() throws IOException, InterruptedException
+    {
+        output.mkdirs();
+        writer = new RegionWriter(output);
+        snapshot = loadMap(input);
+        
+        // the world may hold anything, so start from a full conversion
+        scratch = createScratch(snapshot);
+        createConverter(snapshot).convert(true);
+        writer.write(scratch);
+        writer.close();
+        
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        Path dir = input.getParentFile().toPath();
+        dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+        
+        log("Watching " + input + " for changes...");
+        
+        try
+        {
+            while(true)
+            {
+                WatchKey key = watcher.take();
+                boolean changed = pollEvents(key);
+                
+                if(!key.reset())
+                    throw new IOException("Unable to watch " + dir);
+                
+                if(!changed)
+                    continue;
+                
+                // a save arrives as several events, wait until the file is quiet
+                while((key = watcher.poll(debounceMillis, TimeUnit.MILLISECONDS)) != null)
+                {
+                    pollEvents(key);
+                    key.reset();
+                }
+                
+                // a failed update leaves the snapshot alone, so the next save retries it
+                try
+                {
+                    update();
+                }
+                catch(RuntimeException e)
+                {
+                    log("Update failed (" + e + "), retrying on the next change");
+                }
+            }
+        }
+        finally
+        {
+            watcher.close();
+            scratch.close();
+            scratchFile.delete();
+        }
+    }
+    
+    protected boolean pollEvents(WatchKey key)
+    {
+        boolean changed = false;
+        
+        for(WatchEvent<?> event : key.pollEvents())
+        {
+            if(event.kind() == OVERFLOW)
+                changed = true;
+            else if(((Path)event.context()).getFileName().toString().equals(input.getName()))
+                changed = true;
+        }
+        
+        return changed;
+    }
+    
+    protected void update() throws IOException, InterruptedException
+    {
+        long start = System.currentTimeMillis();
+        
+        SC2Map map = reloadMap();
+        if(map == null)
+            return;
+        
+        int tiles;
+        if(MapDiff.isSameSize(snapshot, map))
+            tiles = updateChangedTiles(map);
+        else
+            tiles = updateAllTiles(map);
+        
+        if(tiles == 0)
+        {
+            snapshot = map;
+            log("No changes found");
+            return;
+        }
+        
+        writer.flush();
+        snapshot = map;
+        
+        log("Updated " + tiles + " tiles in " + (System.currentTimeMillis() - start) + " ms");
+    }
+    
+    protected int updateChangedTiles(SC2Map map) throws IOException
+    {
+        int width = map.getTerrainMap().getWidth();
+        int height = map.getTerrainMap().getHeight();
+        
+        boolean[] changed = MapDiff.getChangedTiles(snapshot, map);
+        if(MapDiff.count(changed) == 0)
+            return 0;
+        
+        // a tile renders differently if the change is within reach of its own terrain or of 
+        // the terrain its leaves land on, and what it renders lands one tile further out,
+        // tiles just outside the cleared area then restore the leaves they spill into it
+        int reach = read_radius + spill_radius * 2;
+        boolean[] cleared = MapDiff.dilate(changed, width, height, reach);
+        boolean[] rendered = MapDiff.dilate(cleared, width, height, spill_radius);
+        
+        Converter converter = createConverter(map);
+        
+        for(int y=0; y<height; y++)
+            for(int x=0; x<width; x++)
+                if(cleared[x + y * width])
+                    converter.clearTile(x, y, getClearHeight(map, x, y));
+        
+        for(int y=0; y<height; y++)
+            for(int x=0; x<width; x++)
+                if(rendered[x + y * width])
+                    converter.convertTile(x, y);
+        
+        writeChunks(cleared, width, height);
+        return MapDiff.count(rendered);
+    }
+    
+    protected int updateAllTiles(SC2Map map) throws IOException
+    {
+        log("Map size changed, converting everything...");
+        
+        // the old map's chunks go first, the new map may not cover all of them
+        for(int cz=scratch.getChunkZMin(); cz<scratch.getChunkZMin() + scratch.getChunksZ(); cz++)
+            for(int cx=scratch.getChunkXMin(); cx<scratch.getChunkXMin() + scratch.getChunksX(); cx++)
+                writer.deleteChunk(cx, cz);
+        
+        scratch.close();
+        scratch = createScratch(map);
+        createConverter(map).convert(false);
+        writer.write(scratch);
+        
+        return map.getTerrainMap().getWidth() * map.getTerrainMap().getHeight();
+    }
+    
+    protected void writeChunks(boolean[] cleared, int width, int height) throws IOException
+    {
+        // a tile is one chunk, and a chunk changes if it was cleared or took leaves spilled 
+        // back from a cleared tile, which includes the margin chunks around the map
+        int chunkXMin = scratch.getChunkXMin() + 1;
+        int chunkZMin = scratch.getChunkZMin() + 1;
+        
+        for(int y=-1; y<=height; y++)
+        {
+            for(int x=-1; x<=width; x++)
+            {
+                boolean write = false;
+                for(int yi=Math.max(0, y - 1); !write && yi<=Math.min(height - 1, y + 1); yi++)
+                    for(int xi=Math.max(0, x - 1); !write && xi<=Math.min(width - 1, x + 1); xi++)
+                        write = cleared[xi + yi * width];
+                
+                if(write)
+                    writer.writeChunk(scratch, chunkXMin + x, chunkZMin + y);
+            }
+        }
+    }
+    
+    protected MappedCanvas createScratch(SC2Map map) throws IOException
+    {
+        // leave a chunk of margin for trees that overhang the map edge
+        int width = map.getTerrainMap().getWidth();
+        int height = map.getTerrainMap().getHeight();
+        int scale = Converter.getGridScale();
+        
+        scratchFile.delete();
+        return MappedCanvas.createCanvas(scratchFile, 
+                Converter.getDefaultOrigin(width) - 16, Converter.getDefaultOrigin(height) - 16, 
+                width * scale + 32, height * scale + 32);
+    }
+    
+    protected Converter createConverter(SC2Map map)
+    {
+        Converter converter = new Converter(map, scratch);
+        converter.setPalette(palette);
+        return converter;
+    }
+    
+    protected int getClearHeight(SC2Map map, int x, int y)
+    {
+        // nothing is built more than three tiles above the highest nearby ground or water
+        int altitude = MapDiff.getHighestAltitude(snapshot, x, y);
+        if(map != snapshot)
+            altitude = Math.max(altitude, MapDiff.getHighestAltitude(map, x, y));
+        
+        return Math.min(max_height, (altitude + 3) * Converter.getGridScale());
+    }
+    
+    protected SC2Map reloadMap() throws InterruptedException
+    {
+        // the game may still be writing, so retry a few times before giving up
+        for(int attempt=1; attempt<=max_load_attempts; attempt++)
+        {
+            Exception failure;
+            
+            try
+            {
+                return loadMap(input);
+            }
+            catch(IOException e)
+            {
+                failure = e;
+            }
+            catch(RuntimeException e)
+            {
+                // a half written file can trip the parser in other ways
+                failure = e;
+            }
+            
+            if(attempt == max_load_attempts)
+                log("Unable to read " + input.getName() + " (" + failure + "), waiting for the next save");
+            else
+                Thread.sleep(debounceMillis);
+        }
+        
+        return null;
+    }
+    
+    protected static SC2Map loadMap(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        
+        try
+        {
+            return SC2Map.loadMap(in);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    protected static void log(String str)
+    {
+        System.out.println(str);
+    }
+    
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        if(args.length < 2)
+        {
+            System.out.println("Usage: WatchConversion <input.sc2> <output world> [debounce ms] [theme file]");
+            return;
+        }
+        
+        long debounce = args.length > 2 ? Long.parseLong(args[2]) : default_debounce_millis;
+        Palette palette = args.length > 3 ? Theme.loadTheme(new File(args[3])).compile() : Palette.getDefaultPalette();
+        WatchConversion conversion = new WatchConversion(new File(args[0]), new File(args[1]), debounce);
+        conversion.setPalette(palette);
+        
+        System.out.println("Reticulating mines...");
+        
+        conversion.run();
+    }
+}